@@ -0,0 +1,207 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Concurrency limit that adapts to the latency of the tasks it admits, based on
+ * a gradient algorithm. The latency of every completed task is compared to a
+ * long-term average: as long as tasks do not get slower, the limit grows. Once
+ * more tasks are admitted than the downstream can handle, they start queuing
+ * up there, their latency rises above the long-term average and the limit is
+ * reduced in proportion. This way the limit settles around the point at which
+ * throughput no longer increases with concurrency and follows that point as the
+ * load changes.
+ * <p>
+ * Instances are shared by all calls of an executor, since they all compete for
+ * the same downstream resources.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class AdaptiveConcurrencyLimit {
+
+	// how much of a latency increase is tolerated before the limit is reduced
+	private static final double TOLERANCE = 1.5;
+
+	// weight of a new estimate, smooths out noisy samples
+	private static final double SMOOTHING = 0.2;
+
+	// number of samples the long-term latency average is taken over
+	private static final int LONG_WINDOW = 600;
+
+	// the limit is never cut by more than half at once
+	private static final double MIN_GRADIENT = 0.5;
+
+	private final int maxLimit;
+	private final IntConsumer listener;
+
+	// guarded by this
+	private double limit;
+	private int inFlight;
+	private double longRtt;
+	private int samples;
+
+	/**
+	 * @param initialLimit
+	 *            the limit to start with
+	 * @param maxLimit
+	 *            the maximum the limit can grow to
+	 * @param listener
+	 *            notified whenever the limit changes, may be {@code null}
+	 */
+	public AdaptiveConcurrencyLimit(int initialLimit, int maxLimit, IntConsumer listener) {
+
+		if (maxLimit < 1) {
+			throw new IllegalArgumentException("Invalid concurrency limit: " + maxLimit);
+		}
+
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(1, Math.min(initialLimit, maxLimit));
+		this.listener = listener;
+	}
+
+	/**
+	 * Acquires a permit if the number of tasks in flight is below the limit.
+	 *
+	 * @return {@code true} if a permit has been acquired, {@code false} otherwise
+	 */
+	public synchronized boolean tryAcquire() {
+
+		if (this.inFlight >= getLimit()) {
+			return false;
+		}
+
+		this.inFlight++;
+		return true;
+	}
+
+	/**
+	 * Waits for a permit. A task that is to be admitted must not be given up on
+	 * just because the current thread has been interrupted, so the interrupt
+	 * status is merely restored after the permit has been acquired.
+	 */
+	public synchronized void acquireUninterruptibly() {
+
+		boolean interrupted = false;
+
+		while (this.inFlight >= getLimit()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		this.inFlight++;
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for a permit until the specified deadline. Unlike
+	 * {@link #acquireUninterruptibly()} this gives up if the current thread is
+	 * interrupted, with the interrupt status restored.
+	 *
+	 * @param deadline
+	 *            the deadline in terms of {@link System#nanoTime()}
+	 * @return {@code true} if a permit has been acquired, {@code false} if the
+	 *         deadline passed or the current thread was interrupted first
+	 */
+	public synchronized boolean tryAcquireUntil(long deadline) {
+
+		while (this.inFlight >= getLimit()) {
+
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				return false;
+			}
+
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		this.inFlight++;
+		return true;
+	}
+
+	/**
+	 * Returns a permit and updates the limit with the latency of the task that
+	 * held it.
+	 *
+	 * @param rtt
+	 *            the time in nanoseconds it took to run the task, or a negative
+	 *            value if it has not been run
+	 */
+	public void release(long rtt) {
+
+		int oldLimit;
+		int newLimit;
+
+		synchronized (this) {
+
+			oldLimit = getLimit();
+
+			if (rtt > 0) {
+				update(rtt);
+			}
+
+			this.inFlight--;
+			newLimit = getLimit();
+			notifyAll();
+		}
+
+		if (newLimit != oldLimit && this.listener != null) {
+			this.listener.accept(newLimit);
+		}
+	}
+
+	// guarded by this
+	private void update(long rtt) {
+
+		if (this.samples < LONG_WINDOW) {
+			this.samples++;
+		}
+
+		this.longRtt += (rtt - this.longRtt) / this.samples;
+
+		// after a load spike the long-term average takes a while to come down
+		// again, which would keep the limit from growing; speed that up
+		if (this.longRtt > 2 * rtt) {
+			this.longRtt *= 0.95;
+		}
+
+		// the limit is not being used, so the samples don't say anything about
+		// whether it could be raised
+		if (this.inFlight < this.limit / 2) {
+			return;
+		}
+
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * this.longRtt / rtt));
+		double estimate = this.limit * gradient + Math.sqrt(this.limit);
+
+		this.limit = this.limit * (1 - SMOOTHING) + estimate * SMOOTHING;
+		this.limit = Math.max(1, Math.min(this.maxLimit, this.limit));
+	}
+
+	/**
+	 * @return the current number of tasks that may be in flight at the same time
+	 */
+	public synchronized int getLimit() {
+		return (int) this.limit;
+	}
+
+	/**
+	 * @return the maximum the limit can grow to
+	 */
+	public int getMaxLimit() {
+		return this.maxLimit;
+	}
+}
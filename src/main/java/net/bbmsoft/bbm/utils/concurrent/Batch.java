@@ -0,0 +1,741 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the tasks submitted to a thread pool by a single call to a
+ * {@link ParallelExecutor}, so the calling thread can wait for them to
+ * complete. Tasks are wrapped by {@link #submit(Runnable)} before they are
+ * handed to the pool, which registers them with the batch and applies the
+ * batch's {@link FailurePolicy} when they are run. A wrapped task that is
+ * dropped by the pool, e.g. because it is shut down, must be
+ * {@link Task#discard() discarded}, so the batch can still complete.
+ * <p>
+ * If the batch is created with caller participation enabled, the calling thread
+ * does not just wait for the pool threads but runs tasks of the batch itself
+ * that have not been picked up by a pool thread yet. Each task is claimed
+ * atomically, so it runs exactly once, no matter whether the calling thread or
+ * a pool thread gets to it first.
+ * <p>
+ * Batches keep track of whether the current thread is running one of their
+ * tasks (see {@link #isInTask()}). A batch created from within a task must let
+ * its calling thread participate: that thread may well be one of the pool's
+ * own threads, and if all of them were blocked waiting for tasks queued behind
+ * them, the pool would deadlock.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class Batch {
+
+	// the batch whose task the current thread is running, if any
+	private static final ThreadLocal<Batch> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * Determines what happens when a task of the batch throws an exception.
+	 */
+	enum FailurePolicy {
+
+		/**
+		 * The exception is passed to the thread's uncaught exception handler, all
+		 * other tasks keep running.
+		 */
+		REPORT,
+
+		/**
+		 * The exception is rethrown in the calling thread once all tasks are
+		 * complete. If the calling thread is interrupted while waiting, tasks that
+		 * have not been started yet are skipped and a
+		 * {@link ParallelExecutionException} is thrown once the running ones have
+		 * completed, since the results of the call are incomplete.
+		 */
+		COLLECT,
+
+		/**
+		 * Tasks that have not been started yet are skipped, running ones are
+		 * interrupted and a {@link ParallelExecutionException} is thrown in the
+		 * calling thread once they have stopped. The same happens if the calling
+		 * thread is interrupted while waiting.
+		 */
+		FAIL_FAST
+	}
+
+	private final FailurePolicy policy;
+	private final TaskFailures failures;
+
+	// the thread that created the batch and will wait for it
+	private final Thread owner;
+
+	// tasks the owner can claim while waiting, null if it does not participate
+	private final Queue<Task> unclaimed;
+
+	// the calling thread holds one registration until it starts waiting, so the
+	// batch cannot complete while tasks are still being submitted
+	private final AtomicInteger pending;
+	private final CountDownLatch done;
+
+	// guarded by itself
+	private final Set<Thread> running;
+
+	// limits the number of tasks in flight, null if there is no limit
+	private Semaphore window;
+
+	// limit shared with other batches of the same executor, null if there is none
+	private AdaptiveConcurrencyLimit concurrencyLimit;
+
+	// time after which tasks are no longer admitted by the limit, if bounded
+	private boolean admissionBounded;
+	private long admissionDeadline;
+
+	// tasks that have been registered but not released yet, completed right away
+	// if the batch is cancelled; null until the first task is deferred
+	private volatile Set<Task> deferred;
+
+	private volatile boolean cancelled;
+
+	// set if the calling thread does not wait but gets notified via a future
+	private volatile CompletableFuture<Void> completion;
+
+	// whether the calling thread is going to use completion() instead of waiting
+	private volatile boolean detached;
+
+	public Batch(FailurePolicy policy, boolean callerRuns) {
+		this(policy, callerRuns, policy == FailurePolicy.FAIL_FAST);
+	}
+
+	/**
+	 * @param interruptible
+	 *            whether running tasks are interrupted when the batch is cancelled
+	 */
+	public Batch(FailurePolicy policy, boolean callerRuns, boolean interruptible) {
+		this.policy = policy;
+		this.failures = new TaskFailures();
+		this.owner = Thread.currentThread();
+		this.unclaimed = callerRuns ? new ConcurrentLinkedQueue<>() : null;
+		this.pending = new AtomicInteger(1);
+		this.done = new CountDownLatch(1);
+		this.running = interruptible ? new HashSet<>() : null;
+	}
+
+	/**
+	 * @return {@code true} if the current thread is running a task of any batch,
+	 *         {@code false} otherwise
+	 */
+	public static boolean isInTask() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * Marks this batch as one whose calling thread is going to use
+	 * {@link #completion()} instead of waiting for it. Must be called before the
+	 * first task is submitted.
+	 */
+	public void detach() {
+		this.detached = true;
+	}
+
+	/**
+	 * Limits the number of tasks of this batch that may be in flight at the same
+	 * time. Must be called before the first task is submitted.
+	 *
+	 * @see #acquireSlot()
+	 */
+	public void limit(int maxInFlight) {
+		this.window = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Subjects the tasks of this batch to the specified adaptive limit. Tasks are
+	 * only submitted once the limit admits them and their latency is fed back to
+	 * the limit when they complete. Must be called before the first task is
+	 * submitted and never for a batch created from within a task, whose tasks
+	 * could otherwise wait for permits held by the outer batch's tasks forever.
+	 */
+	public void limit(AdaptiveConcurrencyLimit limit) {
+		this.concurrencyLimit = limit;
+	}
+
+	/**
+	 * Subjects the tasks of this batch to the specified adaptive limit like
+	 * {@link #limit(AdaptiveConcurrencyLimit)}, but only waits for the limit to
+	 * admit a task until the specified deadline. If it does not, the batch is
+	 * cancelled, so the task and all tasks submitted after it are not run. Must
+	 * not be combined with {@link #limit(int)}.
+	 *
+	 * @param deadline
+	 *            the deadline in terms of {@link System#nanoTime()}
+	 */
+	public void limit(AdaptiveConcurrencyLimit limit, long deadline) {
+		this.concurrencyLimit = limit;
+		this.admissionBounded = true;
+		this.admissionDeadline = deadline;
+	}
+
+	/**
+	 * Waits until there is room for another task if the number of tasks in flight
+	 * is limited. While waiting, the calling thread runs unclaimed tasks if it
+	 * participates.
+	 */
+	public void acquireSlot() throws InterruptedException {
+
+		if (this.window == null) {
+			return;
+		}
+
+		while (!this.window.tryAcquire()) {
+			if (!helpOne()) {
+				this.window.acquire();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Registers a task with this batch. If the batch is subject to an adaptive
+	 * concurrency limit, this waits until the limit admits the task, while
+	 * running unclaimed tasks if the calling thread participates.
+	 *
+	 * @return the {@link Task} to be handed to the thread pool
+	 */
+	public Task submit(Runnable task) {
+
+		Task wrapper = register(task);
+
+		if (this.unclaimed != null) {
+			this.unclaimed.add(wrapper);
+		}
+
+		return wrapper;
+	}
+
+	/**
+	 * Registers a task with this batch like {@link #submit(Runnable)}, but does
+	 * not let the calling thread run it before it has been
+	 * {@link Task#release() released}. This is meant for tasks that must not be
+	 * started before a certain time. If the batch is cancelled in the meantime,
+	 * the task is completed right away, so the calling thread does not have to
+	 * wait for it to be released.
+	 *
+	 * @return the {@link Task} to be released and handed to the thread pool later
+	 */
+	public Task submitDeferred(Runnable task) {
+		return defer(register(task));
+	}
+
+	/**
+	 * Registers another attempt of a task of this batch that failed, to be
+	 * released once it is due like a task submitted via
+	 * {@link #submitDeferred(Runnable)}. Unlike other tasks, retries may be
+	 * submitted by any thread, but only while the failed attempt is still running,
+	 * so the batch cannot complete in the meantime. Retries neither wait for nor
+	 * take up room in the streaming window or the adaptive concurrency limit, the
+	 * failed attempt's room is given back as soon as it has completed.
+	 *
+	 * @return the {@link Task} to be released and handed to the thread pool later
+	 */
+	public Task submitRetry(Runnable task) {
+		this.pending.incrementAndGet();
+		return defer(new Task(task, false));
+	}
+
+	private Task register(Runnable task) {
+
+		boolean admitted = this.concurrencyLimit == null || admit();
+
+		if (!admitted) {
+			cancel();
+		}
+
+		this.pending.incrementAndGet();
+
+		// a task that has not been admitted holds no permit that could be returned
+		return new Task(task, admitted);
+	}
+
+	private Task defer(Task task) {
+
+		deferred().add(task);
+
+		if (this.cancelled) {
+			completeDeferred();
+		}
+
+		return task;
+	}
+
+	private Set<Task> deferred() {
+
+		Set<Task> deferred = this.deferred;
+
+		if (deferred == null) {
+			synchronized (this) {
+				deferred = this.deferred;
+				if (deferred == null) {
+					this.deferred = deferred = ConcurrentHashMap.newKeySet();
+				}
+			}
+		}
+
+		return deferred;
+	}
+
+	/**
+	 * Lets the calling thread run one task of the batch that has not been picked
+	 * up by a pool thread yet.
+	 *
+	 * @return {@code false} if there was no such task, {@code true} otherwise
+	 */
+	public boolean helpOne() {
+
+		if (this.unclaimed == null) {
+			return false;
+		}
+
+		Task task;
+		while (!this.cancelled && (task = this.unclaimed.poll()) != null) {
+			if (task.claim()) {
+				run(task);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	// returns false if the admission deadline passed before a permit was acquired
+	private boolean admit() {
+
+		while (!this.concurrencyLimit.tryAcquire()) {
+
+			if (helpOne()) {
+				continue;
+			}
+
+			if (this.admissionBounded) {
+				return this.concurrencyLimit.tryAcquireUntil(this.admissionDeadline);
+			}
+
+			this.concurrencyLimit.acquireUninterruptibly();
+			break;
+		}
+
+		return true;
+	}
+
+	private void help() {
+		// an interrupt of the calling thread is handled when it starts waiting
+		while (!this.owner.isInterrupted() && helpOne()) {
+			continue;
+		}
+	}
+
+	private void run(Task task) {
+
+		boolean timed = false;
+		long start = 0;
+
+		try {
+
+			if (this.cancelled) {
+				return;
+			}
+
+			Batch outer = CURRENT.get();
+			CURRENT.set(this);
+
+			if (this.concurrencyLimit != null && task.limited) {
+				timed = true;
+				start = System.nanoTime();
+			}
+
+			try {
+				runTracked(task.task);
+			} finally {
+				CURRENT.set(outer);
+			}
+
+		} finally {
+			finish(task, timed ? System.nanoTime() - start : -1);
+		}
+	}
+
+	private void discard(Task task) {
+		try {
+			if (!this.cancelled) {
+				this.cancelled = true;
+				fail(new RejectedExecutionException("Tasks have been discarded by the executor."));
+			}
+		} finally {
+			finish(task, -1);
+		}
+	}
+
+	private void runTracked(Runnable task) {
+
+		if (this.running == null) {
+			runGuarded(task);
+			return;
+		}
+
+		Thread thread = Thread.currentThread();
+
+		synchronized (this.running) {
+			this.running.add(thread);
+		}
+
+		try {
+			runGuarded(task);
+		} finally {
+			synchronized (this.running) {
+				this.running.remove(thread);
+			}
+			// clear an interrupt that may have been caused by cancel(), the
+			// thread is going to be reused for unrelated tasks; the owner is
+			// never interrupted by cancel(), so any interrupt is genuine
+			if (thread != this.owner) {
+				Thread.interrupted();
+			}
+		}
+	}
+
+	private void runGuarded(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException | Error e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Handles an exception thrown by one of the batch's tasks according to the
+	 * batch's {@link FailurePolicy}.
+	 */
+	public void fail(Throwable e) {
+		switch (this.policy) {
+		case REPORT:
+			ParallelExecutorBase.reportUncaught(e);
+			break;
+		case COLLECT:
+			this.failures.add(e);
+			break;
+		case FAIL_FAST:
+			this.failures.add(e);
+			cancel();
+			break;
+		}
+	}
+
+	/**
+	 * Prevents tasks that have not been started yet from being run and
+	 * interrupts running ones if the batch is interruptible.
+	 */
+	public void cancel() {
+
+		this.cancelled = true;
+
+		if (this.deferred != null) {
+			completeDeferred();
+		}
+
+		if (this.running == null) {
+			return;
+		}
+
+		Thread current = Thread.currentThread();
+
+		synchronized (this.running) {
+			for (Thread thread : this.running) {
+				if (thread != current && thread != this.owner) {
+					thread.interrupt();
+				}
+			}
+		}
+	}
+
+	private void completeDeferred() {
+		for (Iterator<Task> it = this.deferred.iterator(); it.hasNext();) {
+			Task task = it.next();
+			it.remove();
+			if (task.claim()) {
+				finish(task, -1);
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if tasks of this batch should no longer be run
+	 */
+	public boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * Waits for all registered tasks to complete. Must be called exactly once by
+	 * the calling thread after all tasks have been submitted.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if the batch is in fail-fast mode and a task failed or if it
+	 *             is in fail-fast or collecting mode and the calling thread was
+	 *             interrupted
+	 */
+	public void await() {
+
+		arrive();
+
+		if (this.unclaimed != null) {
+			help();
+		}
+
+		try {
+			this.done.await();
+		} catch (InterruptedException e) {
+
+			if (this.policy == FailurePolicy.REPORT) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			// tasks of a collecting batch may still be writing results the
+			// caller is about to read, so they must be waited for
+			cancel();
+			awaitUninterruptibly();
+			Thread.currentThread().interrupt();
+			throw this.failures.toException(e);
+		}
+
+		if (this.policy == FailurePolicy.FAIL_FAST && this.failures.hasFailed()) {
+			throw this.failures.toException(null);
+		}
+
+		if (this.policy == FailurePolicy.COLLECT) {
+			this.failures.rethrow();
+		}
+	}
+
+	/**
+	 * Waits for all registered tasks to complete until the specified deadline.
+	 * Must be called exactly once by the calling thread after all tasks have been
+	 * submitted. Task failures are not handled here, the caller is expected to
+	 * keep track of them. The batch is not cancelled when the deadline passes.
+	 * <p>
+	 * If the calling thread participates, it only starts tasks before the
+	 * deadline, but a task it has started cannot be pre-empted, so the deadline
+	 * is overrun by up to the run time of one task. Batches for calls with a
+	 * deadline should therefore only let the calling thread participate if it has
+	 * to, i.e. for calls made from within a task.
+	 *
+	 * @param deadline
+	 *            the deadline in terms of {@link System#nanoTime()}
+	 * @return {@code true} if all tasks completed before the deadline,
+	 *         {@code false} if the deadline passed or the calling thread was
+	 *         interrupted
+	 */
+	public boolean awaitUntil(long deadline) {
+
+		arrive();
+
+		if (this.unclaimed != null) {
+			while (!this.owner.isInterrupted() && System.nanoTime() - deadline < 0 && helpOne()) {
+				continue;
+			}
+		}
+
+		try {
+			return this.done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a future that is completed once all registered tasks have completed,
+	 * instead of waiting for them. Must be called exactly once by the calling
+	 * thread after all tasks have been submitted, instead of {@link #await()}. The
+	 * batch must not let the calling thread participate.
+	 * <p>
+	 * The future is completed by the task that finishes last, according to the
+	 * batch's {@link FailurePolicy}: exceptionally with a
+	 * {@link ParallelExecutionException} in fail-fast mode or with the first
+	 * exception when collecting exceptions, if any task failed. Cancelling the
+	 * future cancels the batch.
+	 */
+	public CompletableFuture<Void> completion() {
+
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		completion.whenComplete((r, e) -> {
+			if (completion.isCancelled()) {
+				cancel();
+			}
+		});
+
+		this.completion = completion;
+		arrive();
+
+		return completion;
+	}
+
+	private void complete(CompletableFuture<Void> completion) {
+
+		Throwable failure = null;
+
+		if (this.policy == FailurePolicy.FAIL_FAST && this.failures.hasFailed()) {
+			failure = this.failures.toException(null);
+		} else if (this.policy == FailurePolicy.COLLECT) {
+			failure = this.failures.collect();
+		}
+
+		if (failure != null) {
+			completion.completeExceptionally(failure);
+		} else {
+			completion.complete(null);
+		}
+	}
+
+	private void awaitUninterruptibly() {
+
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				this.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @param rtt
+	 *            the time in nanoseconds it took to run the task, or a negative
+	 *            value if it has not been run or its latency is not of interest
+	 */
+	private void finish(Task task, long rtt) {
+		if (task.limited && this.window != null) {
+			this.window.release();
+		}
+		if (task.limited && this.concurrencyLimit != null) {
+			this.concurrencyLimit.release(rtt);
+		}
+		arrive();
+	}
+
+	private void arrive() {
+		if (this.pending.decrementAndGet() == 0) {
+			this.done.countDown();
+			CompletableFuture<Void> completion = this.completion;
+			if (completion != null) {
+				complete(completion);
+			}
+		}
+	}
+
+	/**
+	 * A task of a batch as it is handed to the thread pool. Each task is claimed
+	 * atomically by the first thread to get to it, so it is run exactly once.
+	 */
+	class Task extends AtomicBoolean implements Runnable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Runnable task;
+
+		// whether the task holds room in the window and the concurrency limit
+		private final boolean limited;
+
+		private Task(Runnable task, boolean limited) {
+			this.task = task;
+			this.limited = limited;
+		}
+
+		private boolean claim() {
+			return compareAndSet(false, true);
+		}
+
+		@Override
+		public void run() {
+			if (claim()) {
+				Batch.this.run(this);
+			}
+		}
+
+		/**
+		 * @return {@code true} if the calling thread of the batch is going to wait
+		 *         for it, {@code false} if the batch has been
+		 *         {@link Batch#detach() detached}
+		 */
+		public boolean isAwaited() {
+			return !Batch.this.detached;
+		}
+
+		/**
+		 * @return {@code true} if a thread has already started or completed the
+		 *         task, {@code false} otherwise
+		 */
+		public boolean isClaimed() {
+			return get();
+		}
+
+		/**
+		 * Lets the calling thread of the batch run a task that has been submitted via
+		 * {@link Batch#submitDeferred(Runnable)} or {@link Batch#submitRetry(Runnable)},
+		 * if it participates.
+		 *
+		 * @return {@code false} if the task has already been completed because the
+		 *         batch has been cancelled, {@code true} otherwise
+		 */
+		public boolean release() {
+
+			if (!Batch.this.deferred.remove(this)) {
+				return false;
+			}
+
+			if (Batch.this.unclaimed != null) {
+				Batch.this.unclaimed.add(this);
+			}
+
+			return true;
+		}
+
+		/**
+		 * Completes the task without running it. This cancels the rest of the batch
+		 * and lets its calling thread know that the task has been dropped.
+		 */
+		public void discard() {
+			if (claim()) {
+				Batch.this.discard(this);
+			}
+		}
+
+		/**
+		 * Completes the task without running it after the thread pool refused to
+		 * take it, if the refusal is thrown in the calling thread instead of being
+		 * handled by the batch. This cancels the rest of the batch, whose calling
+		 * thread is not going to wait for it, and gives back the room the task held
+		 * in the streaming window and the adaptive concurrency limit.
+		 */
+		public void abandon() {
+			if (claim()) {
+				Batch.this.cancel();
+				Batch.this.finish(this, -1);
+			}
+		}
+	}
+}
@@ -1,35 +1,196 @@
 package net.bbmsoft.bbm.utils.concurrent;
 
+import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class CustomThreadFactory implements ThreadFactory {
 
+	/**
+	 * Stack size that lets the JVM choose the stack size of new threads. This is
+	 * the default.
+	 */
+	public static final long DEFAULT_STACK_SIZE = 0;
+
 	private final String name;
 	private final boolean daemon;
 	private final AtomicInteger counter;
 	private final int priority;
+	private final ThreadFactory virtualThreadFactory;
+	private final ThreadGroup threadGroup;
+	private final long stackSize;
+	private final UncaughtExceptionHandler uncaughtExceptionHandler;
 
 	public CustomThreadFactory(String name, boolean daemon) {
-		this.name = name;
-		this.daemon = daemon;
-		this.counter = new AtomicInteger();
-		this.priority = Thread.NORM_PRIORITY;
+		this(name, daemon, Thread.NORM_PRIORITY);
 	}
 
 	public CustomThreadFactory(String name, boolean daemon, int priority) {
+		this(name, daemon, priority, null, DEFAULT_STACK_SIZE, null);
+	}
+
+	private CustomThreadFactory(String name, boolean daemon, int priority, ThreadGroup threadGroup, long stackSize,
+			UncaughtExceptionHandler uncaughtExceptionHandler) {
 		this.name = name;
 		this.daemon = daemon;
 		this.priority = priority;
 		this.counter = new AtomicInteger();
+		this.virtualThreadFactory = null;
+		this.threadGroup = threadGroup;
+		this.stackSize = stackSize;
+		this.uncaughtExceptionHandler = uncaughtExceptionHandler;
+	}
+
+	private CustomThreadFactory(String name, ThreadFactory virtualThreadFactory,
+			UncaughtExceptionHandler uncaughtExceptionHandler) {
+		this.name = name;
+		// virtual threads are always daemon threads and ignore their priority,
+		// their thread group and stack size cannot be chosen either
+		this.daemon = true;
+		this.priority = Thread.NORM_PRIORITY;
+		this.counter = new AtomicInteger();
+		this.virtualThreadFactory = virtualThreadFactory;
+		this.threadGroup = null;
+		this.stackSize = DEFAULT_STACK_SIZE;
+		this.uncaughtExceptionHandler = uncaughtExceptionHandler;
+	}
+
+	/**
+	 * Creates a {@link CustomThreadFactory} that produces named virtual threads.
+	 * <p>
+	 * Virtual threads are only available on Java 21 or newer. This library does
+	 * not require a recent Java version though, so they are created reflectively
+	 * and this method fails at runtime instead of preventing the library from
+	 * being loaded on older JVMs.
+	 *
+	 * @param name
+	 *            the prefix of the created threads' names
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM does not support virtual threads
+	 * @see #isVirtualThreadSupported()
+	 */
+	public static CustomThreadFactory virtual(String name) {
+		return new CustomThreadFactory(name, virtualThreadFactory(), null);
+	}
+
+	/**
+	 * Returns a factory that creates the same threads as this one, except in the
+	 * specified {@link ThreadGroup}.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if this factory produces virtual threads
+	 */
+	public CustomThreadFactory withThreadGroup(ThreadGroup threadGroup) {
+
+		if (isVirtual()) {
+			throw new UnsupportedOperationException("The thread group of virtual threads cannot be chosen.");
+		}
+
+		return new CustomThreadFactory(this.name, this.daemon, this.priority, threadGroup, this.stackSize,
+				this.uncaughtExceptionHandler);
+	}
+
+	/**
+	 * Returns a factory that creates the same threads as this one, except with the
+	 * specified stack size. A smaller stack allows for more threads within the
+	 * same memory, a larger one for deeper recursion. Note that some platforms
+	 * ignore the stack size, see {@link Thread#Thread(ThreadGroup, Runnable, String, long)}.
+	 *
+	 * @param stackSize
+	 *            the stack size in bytes or {@link #DEFAULT_STACK_SIZE}
+	 * @throws IllegalArgumentException
+	 *             if {@code stackSize} is negative
+	 * @throws UnsupportedOperationException
+	 *             if this factory produces virtual threads
+	 */
+	public CustomThreadFactory withStackSize(long stackSize) {
+
+		if (stackSize < 0) {
+			throw new IllegalArgumentException("Invalid stack size: " + stackSize);
+		}
+
+		if (isVirtual()) {
+			throw new UnsupportedOperationException("The stack size of virtual threads cannot be chosen.");
+		}
+
+		return new CustomThreadFactory(this.name, this.daemon, this.priority, this.threadGroup, stackSize,
+				this.uncaughtExceptionHandler);
+	}
+
+	/**
+	 * Returns a factory that creates the same threads as this one, except that
+	 * exceptions thrown by the threads' tasks are passed to the specified
+	 * {@link UncaughtExceptionHandler}. This includes exceptions thrown by tasks of
+	 * a {@link ParallelExecutor} that are not rethrown in the calling thread.
+	 */
+	public CustomThreadFactory withUncaughtExceptionHandler(UncaughtExceptionHandler handler) {
+
+		if (isVirtual()) {
+			return new CustomThreadFactory(this.name, this.virtualThreadFactory, handler);
+		}
+
+		return new CustomThreadFactory(this.name, this.daemon, this.priority, this.threadGroup, this.stackSize,
+				handler);
+	}
+
+	/**
+	 * @return {@code true} if the running JVM supports virtual threads,
+	 *         {@code false} otherwise
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			virtualThreadFactory();
+			return true;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	// equivalent to Thread.ofVirtual().factory()
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM.", e);
+		}
+	}
+
+	/**
+	 * @return the prefix of the created threads' names
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return {@code true} if this factory produces virtual threads, {@code false}
+	 *         otherwise
+	 */
+	public boolean isVirtual() {
+		return this.virtualThreadFactory != null;
 	}
 
 	@Override
 	public Thread newThread(Runnable r) {
-		Thread t = new Thread(r);
-		t.setName(this.name + " - " + this.counter.incrementAndGet());
+
+		String name = this.name + " - " + this.counter.incrementAndGet();
+
+		if (this.virtualThreadFactory != null) {
+			Thread t = this.virtualThreadFactory.newThread(r);
+			t.setName(name);
+			if (this.uncaughtExceptionHandler != null) {
+				t.setUncaughtExceptionHandler(this.uncaughtExceptionHandler);
+			}
+			return t;
+		}
+
+		Thread t = new Thread(this.threadGroup, r, name, this.stackSize);
 		t.setDaemon(this.daemon);
 		t.setPriority(this.priority);
+		if (this.uncaughtExceptionHandler != null) {
+			t.setUncaughtExceptionHandler(this.uncaughtExceptionHandler);
+		}
 		return t;
 	}
 }
@@ -0,0 +1,198 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Outcome of a deadline-bounded parallel operation, e.g.
+ * {@link ParallelSynchronousExecutor#execute(java.util.Collection, java.time.Duration)}.
+ * Tasks are identified by their index in the iteration order of the input.
+ * <p>
+ * The report is a snapshot taken when the operation returned. Tasks that were
+ * still running at that point have been interrupted and are reported as
+ * cancelled, even if they complete later on.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public class ExecutionReport {
+
+	private final int total;
+	private final List<Integer> completed;
+	private final Map<Integer, Throwable> failures;
+	private final List<Integer> cancelled;
+	private final List<Integer> notStarted;
+
+	private ExecutionReport(int total, List<Integer> completed, Map<Integer, Throwable> failures,
+			List<Integer> cancelled, List<Integer> notStarted) {
+		this.total = total;
+		this.completed = Collections.unmodifiableList(completed);
+		this.failures = Collections.unmodifiableMap(failures);
+		this.cancelled = Collections.unmodifiableList(cancelled);
+		this.notStarted = Collections.unmodifiableList(notStarted);
+	}
+
+	/**
+	 * @return {@code true} if every task has either completed or failed before the
+	 *         deadline, {@code false} if any task has been cancelled or has not
+	 *         been started
+	 */
+	public boolean isComplete() {
+		return this.cancelled.isEmpty() && this.notStarted.isEmpty();
+	}
+
+	/**
+	 * @return {@code true} if every task has completed successfully before the
+	 *         deadline, {@code false} otherwise
+	 */
+	public boolean isSuccessful() {
+		return this.completed.size() == this.total;
+	}
+
+	/**
+	 * @return the total number of tasks
+	 */
+	public int getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * @return the indices of all tasks that completed successfully, in ascending
+	 *         order
+	 */
+	public List<Integer> getCompleted() {
+		return this.completed;
+	}
+
+	/**
+	 * @return the exceptions thrown by all tasks that failed, by task index in
+	 *         ascending order
+	 */
+	public Map<Integer, Throwable> getFailures() {
+		return this.failures;
+	}
+
+	/**
+	 * @return the indices of all tasks that were still running when the
+	 *         operation returned, in ascending order
+	 */
+	public List<Integer> getCancelled() {
+		return this.cancelled;
+	}
+
+	/**
+	 * @return the indices of all tasks that were never started, in ascending
+	 *         order
+	 */
+	public List<Integer> getNotStarted() {
+		return this.notStarted;
+	}
+
+	@Override
+	public String toString() {
+		return "ExecutionReport [total=" + this.total + ", completed=" + this.completed.size() + ", failed="
+				+ this.failures.size() + ", cancelled=" + this.cancelled.size() + ", notStarted="
+				+ this.notStarted.size() + "]";
+	}
+
+	/**
+	 * Records the state of every task of an operation while it is running. Once
+	 * {@link #close()} has been called, tasks can no longer be started and the
+	 * outcome of tasks that are still running is no longer recorded, so the
+	 * report stays consistent with what happens afterwards.
+	 */
+	static class Tracker {
+
+		private static final int NOT_STARTED = 0;
+		private static final int RUNNING = 1;
+		private static final int COMPLETED = 2;
+		private static final int FAILED = 3;
+		private static final int SKIPPED = 4;
+		private static final int CANCELLED = 5;
+
+		private final AtomicIntegerArray states;
+		private final Map<Integer, Throwable> failures;
+
+		public Tracker(int size) {
+			this.states = new AtomicIntegerArray(size);
+			this.failures = new ConcurrentHashMap<>();
+		}
+
+		/**
+		 * Runs the task with the specified index and records its outcome. An
+		 * exception thrown by the task is recorded, not propagated. Does nothing if
+		 * the tracker has been closed already.
+		 *
+		 * @param onFailure
+		 *            called after a task failed, may be {@code null}
+		 */
+		public void run(int index, IntConsumer task, Runnable onFailure) {
+
+			if (!this.states.compareAndSet(index, NOT_STARTED, RUNNING)) {
+				return;
+			}
+
+			try {
+				task.accept(index);
+				this.states.compareAndSet(index, RUNNING, COMPLETED);
+			} catch (RuntimeException | Error e) {
+				this.failures.put(index, e);
+				if (this.states.compareAndSet(index, RUNNING, FAILED) && onFailure != null) {
+					onFailure.run();
+				}
+			}
+		}
+
+		/**
+		 * Prevents tasks from being started and marks running tasks as cancelled.
+		 *
+		 * @return the final report
+		 */
+		public ExecutionReport close() {
+
+			List<Integer> completed = new ArrayList<>();
+			Map<Integer, Throwable> failures = new LinkedHashMap<>();
+			List<Integer> cancelled = new ArrayList<>();
+			List<Integer> notStarted = new ArrayList<>();
+
+			for (int i = 0; i < this.states.length(); i++) {
+
+				// retry until the state is final, a task may just be starting or finishing
+				while (true) {
+					int state = this.states.get(i);
+					if (state == NOT_STARTED && !this.states.compareAndSet(i, NOT_STARTED, SKIPPED)) {
+						continue;
+					}
+					if (state == RUNNING && !this.states.compareAndSet(i, RUNNING, CANCELLED)) {
+						continue;
+					}
+					switch (state) {
+					case NOT_STARTED:
+					case SKIPPED:
+						notStarted.add(i);
+						break;
+					case RUNNING:
+					case CANCELLED:
+						cancelled.add(i);
+						break;
+					case COMPLETED:
+						completed.add(i);
+						break;
+					case FAILED:
+						failures.put(i, this.failures.get(i));
+						break;
+					}
+					break;
+				}
+			}
+
+			return new ExecutionReport(this.states.length(), completed, failures, cancelled, notStarted);
+		}
+	}
+}
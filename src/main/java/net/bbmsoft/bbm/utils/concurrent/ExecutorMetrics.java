@@ -0,0 +1,327 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records the metrics of a {@link ParallelSynchronousExecutor} and publishes
+ * them via JMX. Tasks are timed by wrapping them in
+ * {@link #run(long, Runnable)}, all counters are striped, so recording does not
+ * make the pool threads contend with each other.
+ * <p>
+ * The MBean server holds on to registered instances, so they only reference the
+ * executor and its pool weakly. Instances of executors that have been garbage
+ * collected without being shut down are unregistered the next time metrics are
+ * registered.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class ExecutorMetrics implements ExecutorMetricsMXBean {
+
+	/**
+	 * System property that enables metrics for all executors with named threads
+	 * by default if set to {@code true}.
+	 */
+	static final String ENABLED_PROPERTY = "net.bbmsoft.bbm.utils.concurrent.metrics";
+
+	private static final String DOMAIN = "net.bbmsoft.bbm.utils.concurrent";
+
+	// receives the owners of instances whose executor has been collected
+	private static final ReferenceQueue<Object> COLLECTED = new ReferenceQueue<>();
+
+	// the number of instances registered under each name so far, so a name that
+	// is taken does not have to be probed for a free number
+	private static final ConcurrentMap<String, AtomicInteger> NAMES = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final Owner owner;
+	private final WeakReference<ExecutorService> pool;
+
+	private final LatencyHistogram queueWait;
+	private final LatencyHistogram runTime;
+	private final LongAdder submitted;
+	private final LongAdder completed;
+	private final LongAdder failed;
+	private final LongAdder rejected;
+	private final LongAdder active;
+
+	private volatile long since;
+
+	// guarded by this
+	private ObjectName objectName;
+
+	/**
+	 * @param name
+	 *            the name to register the instance under
+	 * @param executor
+	 *            the executor whose metrics are recorded, once it has been garbage
+	 *            collected the instance is unregistered
+	 * @param pool
+	 *            the executor's thread pool
+	 */
+	public ExecutorMetrics(String name, Object executor, ExecutorService pool) {
+		this.name = name;
+		this.owner = new Owner(executor, this);
+		this.pool = new WeakReference<>(pool);
+		this.queueWait = new LatencyHistogram();
+		this.runTime = new LatencyHistogram();
+		this.submitted = new LongAdder();
+		this.completed = new LongAdder();
+		this.failed = new LongAdder();
+		this.rejected = new LongAdder();
+		this.active = new LongAdder();
+		this.since = System.nanoTime();
+	}
+
+	/**
+	 * @return {@code true} if metrics have been enabled via
+	 *         {@link #ENABLED_PROPERTY}, {@code false} otherwise
+	 */
+	public static boolean isEnabledByDefault() {
+		return Boolean.getBoolean(ENABLED_PROPERTY);
+	}
+
+	/**
+	 * Records the submission of a task.
+	 *
+	 * @return the submission time to be passed to {@link #run(long, Runnable)}
+	 */
+	public long submitted() {
+		this.submitted.increment();
+		return System.nanoTime();
+	}
+
+	public void rejected() {
+		this.rejected.increment();
+	}
+
+	/**
+	 * Runs the specified task and records its queue wait and run time.
+	 */
+	public void run(long submitted, Runnable task) {
+
+		long start = System.nanoTime();
+		boolean success = false;
+
+		this.queueWait.record(start - submitted);
+		this.active.increment();
+
+		try {
+			task.run();
+			success = true;
+		} finally {
+			this.runTime.record(System.nanoTime() - start);
+			this.active.decrement();
+			this.completed.increment();
+			if (!success) {
+				this.failed.increment();
+			}
+		}
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server. If the executor's
+	 * name is already taken, a number is appended to it. Failures are passed to
+	 * the current thread's uncaught exception handler, metrics are recorded anyway.
+	 */
+	public synchronized void register() {
+
+		unregisterCollected();
+
+		if (this.objectName != null) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		AtomicInteger count = NAMES.computeIfAbsent(this.name, n -> new AtomicInteger());
+
+		try {
+			// the name may also have been taken by someone else, so just try the next
+			while (this.objectName == null) {
+				int i = count.incrementAndGet();
+				String name = i == 1 ? this.name : this.name + " (" + i + ")";
+				ObjectName objectName = new ObjectName(DOMAIN + ":type=ParallelSynchronousExecutor,name="
+						+ ObjectName.quote(name));
+				try {
+					server.registerMBean(this, objectName);
+					this.objectName = objectName;
+				} catch (InstanceAlreadyExistsException e) {
+					continue;
+				}
+			}
+		} catch (JMException e) {
+			ParallelExecutorBase.reportUncaught(e);
+		}
+	}
+
+	/**
+	 * @return the name this instance is registered under or {@code null} if it is
+	 *         not registered
+	 */
+	synchronized ObjectName getObjectName() {
+		return this.objectName;
+	}
+
+	private static void unregisterCollected() {
+		Reference<?> owner;
+		while ((owner = COLLECTED.poll()) != null) {
+			((Owner) owner).metrics.unregister();
+		}
+	}
+
+	public synchronized void unregister() {
+
+		if (this.objectName == null) {
+			return;
+		}
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+		} catch (JMException e) {
+			// already gone
+		}
+
+		this.objectName = null;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public int getPoolSize() {
+		ThreadPoolExecutor pool = threadPool();
+		return pool != null ? pool.getPoolSize() : -1;
+	}
+
+	@Override
+	public int getLargestPoolSize() {
+		ThreadPoolExecutor pool = threadPool();
+		return pool != null ? pool.getLargestPoolSize() : -1;
+	}
+
+	@Override
+	public int getQueueSize() {
+		ThreadPoolExecutor pool = threadPool();
+		return pool != null ? pool.getQueue().size() : -1;
+	}
+
+	// null if the pool is not a thread pool or has been collected
+	private ThreadPoolExecutor threadPool() {
+		ExecutorService pool = this.pool.get();
+		return pool instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) pool : null;
+	}
+
+	@Override
+	public int getActiveTaskCount() {
+		return this.active.intValue();
+	}
+
+	@Override
+	public long getSubmittedTaskCount() {
+		return this.submitted.sum();
+	}
+
+	@Override
+	public long getCompletedTaskCount() {
+		return this.completed.sum();
+	}
+
+	@Override
+	public long getFailedTaskCount() {
+		return this.failed.sum();
+	}
+
+	@Override
+	public long getRejectedTaskCount() {
+		return this.rejected.sum();
+	}
+
+	@Override
+	public double getThroughput() {
+		double seconds = (System.nanoTime() - this.since) / (double) TimeUnit.SECONDS.toNanos(1);
+		return seconds > 0 ? this.completed.sum() / seconds : 0;
+	}
+
+	@Override
+	public double getQueueWaitMillisMean() {
+		return toMillis(this.queueWait.getMean());
+	}
+
+	@Override
+	public double getQueueWaitMillisP50() {
+		return toMillis(this.queueWait.getPercentile(50));
+	}
+
+	@Override
+	public double getQueueWaitMillisP99() {
+		return toMillis(this.queueWait.getPercentile(99));
+	}
+
+	@Override
+	public double getQueueWaitMillisMax() {
+		return toMillis(this.queueWait.getMax());
+	}
+
+	@Override
+	public double getRunTimeMillisMean() {
+		return toMillis(this.runTime.getMean());
+	}
+
+	@Override
+	public double getRunTimeMillisP50() {
+		return toMillis(this.runTime.getPercentile(50));
+	}
+
+	@Override
+	public double getRunTimeMillisP99() {
+		return toMillis(this.runTime.getPercentile(99));
+	}
+
+	@Override
+	public double getRunTimeMillisMax() {
+		return toMillis(this.runTime.getMax());
+	}
+
+	// the number of active tasks is a gauge, so it is not reset
+	@Override
+	public void reset() {
+		this.queueWait.reset();
+		this.runTime.reset();
+		this.submitted.reset();
+		this.completed.reset();
+		this.failed.reset();
+		this.rejected.reset();
+		this.since = System.nanoTime();
+	}
+
+	private static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	private static class Owner extends WeakReference<Object> {
+
+		private final ExecutorMetrics metrics;
+
+		public Owner(Object executor, ExecutorMetrics metrics) {
+			super(executor, COLLECTED);
+			this.metrics = metrics;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+/**
+ * Management interface of the metrics recorded by a
+ * {@link ParallelSynchronousExecutor}. Every named executor registers an
+ * instance with the platform MBean server, under an object name like
+ * {@code net.bbmsoft.bbm.utils.concurrent:type=ParallelSynchronousExecutor,name=<name>},
+ * so it can be inspected with any JMX client. See
+ * {@link ParallelSynchronousExecutor#setMetricsEnabled(boolean)} for details.
+ * <p>
+ * Queue wait time is the time from a task's submission to the start of its
+ * execution, run time the time it took to execute. All times are in
+ * milliseconds, counts and rates refer to the time since the executor was
+ * created or the metrics were last reset.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public interface ExecutorMetricsMXBean {
+
+	/**
+	 * @return the name of the executor
+	 */
+	public String getName();
+
+	/**
+	 * @return the current number of threads in the pool or {@code -1} if the
+	 *         pool does not tell
+	 */
+	public int getPoolSize();
+
+	/**
+	 * @return the largest number of threads that have ever been in the pool at the
+	 *         same time or {@code -1} if the pool does not tell
+	 */
+	public int getLargestPoolSize();
+
+	/**
+	 * @return the number of tasks waiting in the pool's queue or {@code -1} if
+	 *         the pool does not tell
+	 */
+	public int getQueueSize();
+
+	/**
+	 * @return the number of tasks that are running right now
+	 */
+	public int getActiveTaskCount();
+
+	public long getSubmittedTaskCount();
+
+	public long getCompletedTaskCount();
+
+	/**
+	 * @return the number of tasks that threw an exception, which are included in
+	 *         the number of completed tasks
+	 */
+	public long getFailedTaskCount();
+
+	/**
+	 * @return the number of tasks the pool refused to accept, e.g. because it has
+	 *         been shut down
+	 */
+	public long getRejectedTaskCount();
+
+	/**
+	 * @return the average number of tasks completed per second
+	 */
+	public double getThroughput();
+
+	public double getQueueWaitMillisMean();
+
+	public double getQueueWaitMillisP50();
+
+	public double getQueueWaitMillisP99();
+
+	public double getQueueWaitMillisMax();
+
+	public double getRunTimeMillisMean();
+
+	public double getRunTimeMillisP50();
+
+	public double getRunTimeMillisP99();
+
+	public double getRunTimeMillisMax();
+
+	/**
+	 * Resets all counters and histograms.
+	 */
+	public void reset();
+}
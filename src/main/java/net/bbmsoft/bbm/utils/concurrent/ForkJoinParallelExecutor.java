@@ -0,0 +1,266 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * {@link ParallelExecutor} implementation that runs on a dedicated
+ * {@link ForkJoinPool}. Input is processed as a {@link Spliterator} that is
+ * recursively split into smaller chunks, which are then distributed across the
+ * pool's threads via work stealing. In contrast to
+ * {@link ParallelSynchronousExecutor} this does not create a separate task for
+ * every element and balances uneven workloads automatically: threads that run
+ * out of work steal chunks that have not been started yet from busier threads.
+ * <p>
+ * Like a parallel {@link java.util.stream.Stream Stream} this is best suited for
+ * CPU bound tasks. Unlike a parallel stream it does not use the common pool, so
+ * both the level of parallelism and the worker threads can be chosen freely
+ * without affecting other parts of the application.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public class ForkJoinParallelExecutor extends ParallelExecutorBase {
+
+	// number of leaf chunks per pool thread a sized input is split into; more
+	// than one chunk per thread gives idle threads something to steal
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Creates a {@link ForkJoinParallelExecutor} with as many threads as the
+	 * system has processor cores.
+	 */
+	public ForkJoinParallelExecutor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a {@link ForkJoinParallelExecutor} with the specified target
+	 * parallelism.
+	 */
+	public ForkJoinParallelExecutor(int parallelism) {
+		this(new ForkJoinPool(parallelism));
+	}
+
+	/**
+	 * Creates a {@link ForkJoinParallelExecutor} with the specified target
+	 * parallelism whose threads are named after the specified name.
+	 */
+	public ForkJoinParallelExecutor(int parallelism, String name, boolean daemon) {
+		this(new ForkJoinPool(parallelism, new NamedWorkerThreadFactory(name, daemon), null, false));
+	}
+
+	/**
+	 * Creates a {@link ForkJoinParallelExecutor} that runs on the specified
+	 * {@link ForkJoinPool}.
+	 */
+	public ForkJoinParallelExecutor(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Spliterator} in parallel. The spliterator is split recursively and
+	 * the resulting chunks are balanced across the pool's threads via work
+	 * stealing. The method will return as soon as all consumer operations have
+	 * successfully completed or thrown an exception.
+	 */
+	@Override
+	public <T> void forEachParallel(Spliterator<T> spliterator, Consumer<? super T> consumer) {
+		this.pool.invoke(new ForEachTask<>(null, spliterator, consumer, sizeThreshold(spliterator)));
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Spliterator} in parallel without blocking the calling thread. The
+	 * returned future is completed by the chunk that finishes last.
+	 */
+	public <T> CompletableFuture<Void> forEachParallelAsync(Spliterator<T> spliterator, Consumer<? super T> consumer) {
+
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		ForEachTask<T> task = new ForEachTask<>(null, spliterator, consumer, sizeThreshold(spliterator));
+
+		task.completion = completion;
+		this.pool.execute(task);
+
+		return completion;
+	}
+
+	@Override
+	public <T> CompletableFuture<Void> forEachParallelAsync(Iterable<T> items, Consumer<? super T> consumer) {
+		return forEachParallelAsync(items.spliterator(), consumer);
+	}
+
+	@Override
+	public <T> void forEachParallel(Iterable<T> items, Consumer<? super T> consumer) {
+		forEachParallel(items.spliterator(), consumer);
+	}
+
+	@Override
+	public <T> void forEachParallel(Iterator<T> iterator, Consumer<? super T> consumer) {
+		forEachParallel(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), consumer);
+	}
+
+	// the iterator is consumed in batches before the elements are processed, so
+	// the index has to be captured when the element is retrieved
+	@Override
+	public <T> void forEachParallel(Iterator<T> iterator, BiConsumer<? super T, Integer> consumer) {
+		CountingIterator<T> iter = new CountingIterator<>(iterator);
+		TransformingIterator<T, Runnable> transformingIterator = new TransformingIterator<>(iter, t -> {
+			Integer index = iter.getIndex();
+			return () -> consumer.accept(t, index);
+		});
+		execute(transformingIterator);
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel. The method will
+	 * return as soon as all runnables have either completed or thrown an exception.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 */
+	@Override
+	public void execute(Collection<? extends Runnable> actions) {
+		forEachParallel(actions.spliterator(), Runnable::run);
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel. The method will
+	 * return as soon as all runnables have either completed or thrown an exception.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 */
+	@Override
+	public void execute(Iterator<? extends Runnable> actions) {
+		forEachParallel(actions, Runnable::run);
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel without blocking
+	 * the calling thread. The returned future is completed once all runnables have
+	 * either completed or thrown an exception.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 */
+	@Override
+	public CompletableFuture<Void> executeAsync(Collection<? extends Runnable> actions) {
+		return forEachParallelAsync(actions.spliterator(), Runnable::run);
+	}
+
+	/**
+	 * @return the {@link ForkJoinPool} this executor runs on
+	 */
+	public ForkJoinPool getPool() {
+		return this.pool;
+	}
+
+	// splitting stops once a chunk is smaller than the threshold; a threshold of
+	// zero means that the size of the input is unknown and the threshold will be
+	// determined for each chunk split off it individually
+	private long sizeThreshold(Spliterator<?> spliterator) {
+
+		if (!spliterator.hasCharacteristics(Spliterator.SIZED)) {
+			return 0;
+		}
+
+		return Math.max(1, spliterator.estimateSize() / (this.pool.getParallelism() * CHUNKS_PER_THREAD));
+	}
+
+	private class ForEachTask<T> extends CountedCompleter<Void> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Spliterator<T> spliterator;
+		private final Consumer<? super T> consumer;
+		private final long threshold;
+
+		// only set for the root task of an asynchronous call
+		private CompletableFuture<Void> completion;
+
+		public ForEachTask(ForEachTask<T> parent, Spliterator<T> spliterator, Consumer<? super T> consumer,
+				long threshold) {
+			super(parent);
+			this.spliterator = spliterator;
+			this.consumer = consumer;
+			this.threshold = threshold;
+		}
+
+		@Override
+		public void compute() {
+
+			Spliterator<T> remaining = this.spliterator;
+			Spliterator<T> split;
+
+			while (remaining.estimateSize() > this.threshold && (split = remaining.trySplit()) != null) {
+				long threshold = this.threshold > 0 ? this.threshold : sizeThreshold(split);
+				addToPendingCount(1);
+				new ForEachTask<>(this, split, this.consumer, threshold).fork();
+			}
+
+			remaining.forEachRemaining(this::acceptIsolated);
+
+			tryComplete();
+		}
+
+		@Override
+		public void onCompletion(CountedCompleter<?> caller) {
+			if (this.completion != null) {
+				this.completion.complete(null);
+			}
+		}
+
+		@Override
+		public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+			if (this.completion != null) {
+				this.completion.completeExceptionally(ex);
+			}
+			return true;
+		}
+
+		// an exception thrown by one element must not prevent the remaining
+		// elements of the same chunk from being processed
+		private void acceptIsolated(T item) {
+			try {
+				this.consumer.accept(item);
+			} catch (RuntimeException | Error e) {
+				reportUncaught(e);
+			}
+		}
+	}
+
+	private static class NamedWorkerThreadFactory implements ForkJoinWorkerThreadFactory {
+
+		private final String name;
+		private final boolean daemon;
+		private final AtomicInteger counter;
+
+		public NamedWorkerThreadFactory(String name, boolean daemon) {
+			this.name = name;
+			this.daemon = daemon;
+			this.counter = new AtomicInteger();
+		}
+
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName(this.name + " - " + this.counter.incrementAndGet());
+			t.setDaemon(this.daemon);
+			return t;
+		}
+	}
+}
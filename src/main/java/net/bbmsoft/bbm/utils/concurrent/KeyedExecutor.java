@@ -0,0 +1,213 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs tasks with the same key strictly one after the other, in
+ * the order they have been submitted, while tasks with different keys run in
+ * parallel on a shared {@link Executor}. This is useful when e.g. updates for the
+ * same entity must not overtake each other, but there is no reason to serialize
+ * updates for different entities.
+ * <p>
+ * Every key that has tasks pending gets a lane, which occupies at most one
+ * thread of the shared executor at a time and none at all while it is idle.
+ * Lanes are removed as soon as they run out of tasks, so keys that are used only
+ * once do not accumulate. No locks are involved in submitting or running tasks,
+ * the state of each lane is a single atomic counter.
+ * <p>
+ * To be fair to other keys, a lane hands its thread back to the shared executor
+ * after a number of tasks and gets rescheduled. Exceptions thrown by tasks are
+ * passed to the uncaught exception handler of the thread they were thrown in,
+ * the next task with the same key runs normally.
+ * <p>
+ * If the shared executor rejects a lane, the task that started it is rejected
+ * as well and the key can be used again right away. Tasks that were submitted
+ * with the same key at the same moment are dropped, each with a
+ * {@link RejectedExecutionException} passed to the uncaught exception handler.
+ * A lane whose turn is over keeps running on its current thread if it cannot be
+ * rescheduled.
+ *
+ * @author Michael Bachmann
+ *
+ * @param <K>
+ *            the type of the keys
+ */
+public class KeyedExecutor<K> {
+
+	// number of tasks a lane runs before giving other lanes a chance
+	private static final int TASKS_PER_TURN = 64;
+
+	private final Executor executor;
+	private final ConcurrentMap<K, Lane> lanes;
+
+	/**
+	 * Creates a {@link KeyedExecutor} that runs tasks on the specified
+	 * {@link Executor}.
+	 */
+	public KeyedExecutor(Executor executor) {
+		this.executor = executor;
+		this.lanes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Runs the specified task once all tasks previously submitted with the same
+	 * key have completed.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the underlying executor does not accept the task, in which
+	 *             case it is not run
+	 */
+	public void execute(K key, Runnable task) {
+
+		while (true) {
+
+			Lane lane = this.lanes.get(key);
+
+			if (lane == null) {
+				lane = this.lanes.computeIfAbsent(key, Lane::new);
+			}
+
+			if (lane.enqueue(task)) {
+				return;
+			}
+
+			// the lane has just run out of tasks and is being removed
+			this.lanes.remove(key, lane);
+		}
+	}
+
+	/**
+	 * @return the number of keys that currently have tasks pending or running
+	 */
+	public int getActiveKeyCount() {
+		return this.lanes.size();
+	}
+
+	/**
+	 * The tasks of a single key. A lane is scheduled on the shared executor when
+	 * its first task is submitted and runs until it is out of tasks. An empty lane
+	 * is closed for good, so a new lane for the same key can only be started once
+	 * all tasks of the previous one have completed.
+	 */
+	private class Lane implements Runnable {
+
+		private static final int CLOSED = -1;
+
+		private final K key;
+		private final Queue<Runnable> tasks;
+
+		// number of tasks submitted but not yet completed, CLOSED once empty
+		private final AtomicInteger pending;
+
+		public Lane(K key) {
+			this.key = key;
+			this.tasks = new ConcurrentLinkedQueue<>();
+			this.pending = new AtomicInteger();
+		}
+
+		/**
+		 * @return {@code false} if the lane has been closed, {@code true} otherwise
+		 */
+		public boolean enqueue(Runnable task) {
+
+			int pending;
+
+			do {
+				pending = this.pending.get();
+				if (pending == CLOSED) {
+					return false;
+				}
+			} while (!this.pending.compareAndSet(pending, pending + 1));
+
+			this.tasks.add(task);
+
+			if (pending == 0) {
+				try {
+					KeyedExecutor.this.executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					reject(task);
+					throw e;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public void run() {
+
+			while (true) {
+
+				for (int i = 0; i < TASKS_PER_TURN; i++) {
+
+					try {
+						next().run();
+					} catch (RuntimeException | Error e) {
+						ParallelExecutorBase.reportUncaught(e);
+					}
+
+					if (completed()) {
+						return;
+					}
+				}
+
+				try {
+					KeyedExecutor.this.executor.execute(this);
+					return;
+				} catch (RejectedExecutionException e) {
+					// keep the thread, the tasks would be stuck otherwise
+				}
+			}
+		}
+
+		// the lane could not be started, so nobody is going to run its tasks
+		private void reject(Runnable task) {
+
+			this.tasks.remove(task);
+
+			// tasks submitted meanwhile rely on the lane running and are dropped
+			while (!completed()) {
+				ParallelExecutorBase.reportUncaught(new RejectedExecutionException(
+						"Task with key " + this.key + " was dropped: " + next()));
+			}
+		}
+
+		/**
+		 * Counts a task as completed.
+		 *
+		 * @return {@code true} if it was the lane's last task, {@code false} if
+		 *         there are more
+		 */
+		private boolean completed() {
+
+			if (this.pending.decrementAndGet() > 0) {
+				return false;
+			}
+
+			// a task submitted right now reopens the lane instead
+			if (this.pending.compareAndSet(0, CLOSED)) {
+				KeyedExecutor.this.lanes.remove(this.key, this);
+			}
+
+			return true;
+		}
+
+		// the task is counted before it is added, so it may take a moment to show up
+		private Runnable next() {
+
+			Runnable task;
+
+			while ((task = this.tasks.poll()) == null) {
+				Thread.yield();
+			}
+
+			return task;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds that can be updated concurrently with
+ * very little contention. Values are counted in buckets that grow exponentially,
+ * with four buckets per power of two, so percentiles are accurate to within
+ * about 12%, no matter the order of magnitude.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final LongAdder[] buckets;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+
+	public LatencyHistogram() {
+		this.buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets[i] = new LongAdder();
+		}
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+	}
+
+	public void record(long nanos) {
+
+		long value = Math.max(0, nanos);
+
+		this.buckets[bucketOf(value)].increment();
+		this.count.increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public double getMean() {
+		long count = this.count.sum();
+		return count > 0 ? (double) this.sum.sum() / count : 0;
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            the percentile between 0 and 100
+	 * @return an estimate of the specified percentile or zero if nothing has been
+	 *         recorded yet
+	 */
+	public double getPercentile(double percentile) {
+
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets[i].sum();
+			total += counts[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return i + 1 < BUCKETS ? (lowerBoundOf(i) + lowerBoundOf(i + 1)) / 2.0 : getMax();
+			}
+		}
+
+		return getMax();
+	}
+
+	public void reset() {
+		for (LongAdder bucket : this.buckets) {
+			bucket.reset();
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+
+	// values below SUB_BUCKETS get a bucket of their own, larger ones share a
+	// bucket with values that have the same magnitude and leading bits
+	private static int bucketOf(long value) {
+
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long lowerBoundOf(int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+
+		return (long) (SUB_BUCKETS + subBucket) << shift;
+	}
+}
@@ -12,6 +12,9 @@ public interface ObservableParallelExecutor extends ParallelExecutor {
 		public default void onError(String message, boolean critical) {
 		}
 
+		public default void updateConcurrencyLimit(int limit) {
+		}
+
 	}
 
 	public void setProgressMonitor(ProgressMonitor monitor);
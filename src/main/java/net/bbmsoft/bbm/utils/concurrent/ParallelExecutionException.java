@@ -0,0 +1,22 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+/**
+ * Thrown by a {@link ParallelExecutor} running in fail-fast mode when a parallel
+ * operation has been aborted, either because one of its tasks failed or because
+ * the calling thread has been interrupted.
+ * <p>
+ * The cause is the exception thrown by the first failing task or the
+ * {@link InterruptedException} respectively. Exceptions thrown by other tasks
+ * before they could be stopped are attached as suppressed exceptions.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public class ParallelExecutionException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ParallelExecutionException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
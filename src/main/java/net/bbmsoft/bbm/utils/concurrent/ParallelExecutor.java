@@ -1,11 +1,24 @@
 package net.bbmsoft.bbm.utils.concurrent;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Stream;
 
 public interface ParallelExecutor {
 
@@ -31,6 +44,24 @@ public interface ParallelExecutor {
 		forEachParallel((Iterable<T>) iterable, consumer);
 	}
 
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified array
+	 * in parallel if supported by the underlying platform and the concrete
+	 * implementation.
+	 */
+	public default <T> void forEachParallel(T[] array, Consumer<? super T> consumer) {
+		forEachParallel(Arrays.asList(array), consumer);
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified array
+	 * in parallel if supported by the underlying platform and the concrete
+	 * implementation.
+	 */
+	public default <T> void forEachParallel(T[] array, BiConsumer<? super T, Integer> consumer) {
+		forEachParallel(Arrays.asList(array), consumer);
+	}
+
 	/**
 	 * Applies the specified {@link Consumer} to all elements of the specified
 	 * {@link Iterable} in parallel if supported by the underlying platform and the
@@ -65,12 +96,195 @@ public interface ParallelExecutor {
 	 * concrete implementation.
 	 */
 	public default <T> void forEachParallel(Iterator<T> iterator, BiConsumer<? super T, Integer> consumer) {
+		forEachParallelIndexed(iterator, (t, i) -> consumer.accept(t, i));
+	}
+
+	/**
+	 * Applies the specified {@link ObjIntConsumer} to all elements of the
+	 * specified {@link Collection} and their respective index in parallel if
+	 * supported by the underlying platform and the concrete implementation. Unlike
+	 * {@link #forEachParallel(Collection, BiConsumer)} this does not box the
+	 * indices.
+	 */
+	public default <T> void forEachParallelIndexed(Iterable<T> iterable, ObjIntConsumer<? super T> consumer) {
+		forEachParallelIndexed(iterable.iterator(), consumer);
+	}
+
+	/**
+	 * Applies the specified {@link ObjIntConsumer} to all elements of the
+	 * specified {@link Iterator} and their respective index in parallel if
+	 * supported by the underlying platform and the concrete implementation. Unlike
+	 * {@link #forEachParallel(Iterator, BiConsumer)} this does not box the
+	 * indices.
+	 */
+	// the iterator may be drained before the first task runs, so the index has
+	// to be captured when the element is retrieved, not when it is processed
+	public default <T> void forEachParallelIndexed(Iterator<T> iterator, ObjIntConsumer<? super T> consumer) {
 		CountingIterator<T> iter = new CountingIterator<>(iterator);
-		TransformingIterator<T, Runnable> transformingIterator = new TransformingIterator<>(iter,
-				t -> (() -> consumer.accept(t, iter.getIndex())));
+		TransformingIterator<T, Runnable> transformingIterator = new TransformingIterator<>(iter, t -> {
+			int index = iter.getIndex();
+			return () -> consumer.accept(t, index);
+		});
 		execute(transformingIterator);
 	}
 
+	/**
+	 * Applies the specified {@link IntConsumer} to all {@code int} values from
+	 * {@code from} (inclusive) to {@code to} (exclusive) in parallel if supported
+	 * by the underlying platform and the concrete implementation. The range is
+	 * split into contiguous chunks that are processed by one task each, so there
+	 * is no allocation per value.
+	 */
+	public default void forRange(int from, int to, IntConsumer consumer) {
+		forLongRange(from, to, i -> consumer.accept((int) i));
+	}
+
+	/**
+	 * Applies the specified {@link LongConsumer} to all {@code long} values from
+	 * {@code from} (inclusive) to {@code to} (exclusive) in parallel if supported
+	 * by the underlying platform and the concrete implementation. The range is
+	 * split into contiguous chunks that are processed by one task each, so there
+	 * is no allocation per value.
+	 * <p>
+	 * This is not an overload of {@link #forRange(int, int, IntConsumer)}, since
+	 * calls with a lambda would be ambiguous.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the range contains more than {@link Long#MAX_VALUE} values
+	 */
+	public default void forLongRange(long from, long to, LongConsumer consumer) {
+
+		if (to <= from) {
+			return;
+		}
+
+		long size;
+
+		try {
+			size = Math.subtractExact(to, from);
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("Range too large: [" + from + ", " + to + ")", e);
+		}
+
+		// as many chunks per core as ParallelSynchronousExecutor uses in auto mode
+		int chunks = (int) Math.min(size, Runtime.getRuntime().availableProcessors() * 4);
+		List<Runnable> tasks = new ArrayList<>(chunks);
+
+		for (int c = 0; c < chunks; c++) {
+			long start = from + (long) (size * ((double) c / chunks));
+			long end = c + 1 < chunks ? from + (long) (size * ((double) (c + 1) / chunks)) : to;
+			tasks.add(() -> {
+				for (long i = start; i < end; i++) {
+					consumer.accept(i);
+				}
+			});
+		}
+
+		execute(tasks);
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Spliterator} in parallel if supported by the underlying platform and
+	 * the concrete implementation.
+	 */
+	public default <T> void forEachParallel(Spliterator<T> spliterator, Consumer<? super T> consumer) {
+		forEachParallel(Spliterators.iterator(spliterator), consumer);
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Stream} in parallel if supported by the underlying platform and the
+	 * concrete implementation. This is a terminal operation on the stream.
+	 */
+	public default <T> void forEachParallel(Stream<T> stream, Consumer<? super T> consumer) {
+		forEachParallel(stream.spliterator(), consumer);
+	}
+
+	/**
+	 * Applies the specified {@link Function} to all elements of the specified
+	 * {@link Collection} in parallel if supported by the underlying platform and
+	 * the concrete implementation and returns the results in the collection's
+	 * iteration order.
+	 * <p>
+	 * Every result is written to its own preallocated slot, so no synchronization
+	 * between the tasks is needed. If the function throws an exception for any
+	 * element, that exception is rethrown once all other elements have been
+	 * processed, with exceptions thrown for further elements attached as
+	 * suppressed exceptions.
+	 *
+	 * @return a fixed-size list containing the results
+	 */
+	public default <T, R> List<R> mapParallel(Collection<T> items, Function<? super T, ? extends R> mapper) {
+
+		Object[] results = new Object[items.size()];
+		TaskFailures failures = new TaskFailures();
+		List<Runnable> tasks = new ArrayList<>(results.length);
+
+		int counter = 0;
+		for (T item : items) {
+			int index = counter++;
+			tasks.add(failures.guard(() -> results[index] = mapper.apply(item)));
+		}
+
+		execute(tasks);
+		failures.rethrow();
+
+		@SuppressWarnings("unchecked")
+		List<R> list = (List<R>) Arrays.asList(results);
+		return list;
+	}
+
+	/**
+	 * Performs a reduction on the elements of the specified {@link Collection} in
+	 * parallel if supported by the underlying platform and the concrete
+	 * implementation. The semantics are the same as those of
+	 * {@link java.util.stream.Stream#reduce(Object, BiFunction, BinaryOperator)}:
+	 * the collection is split into contiguous parts, each of which is reduced
+	 * separately starting from {@code identity}, and the partial results are then
+	 * combined in order.
+	 * <p>
+	 * If the accumulator or combiner throws an exception, that exception is
+	 * rethrown once all other parts have been reduced.
+	 */
+	public default <T, R> R reduceParallel(Collection<T> items, R identity, BiFunction<R, ? super T, R> accumulator,
+			BinaryOperator<R> combiner) {
+
+		Object[] elements = items.toArray();
+		int parts = Math.min(elements.length, Runtime.getRuntime().availableProcessors());
+		Object[] partials = new Object[parts];
+		TaskFailures failures = new TaskFailures();
+		List<Runnable> tasks = new ArrayList<>(parts);
+
+		for (int p = 0; p < parts; p++) {
+			int part = p;
+			int from = (int) ((long) elements.length * p / parts);
+			int to = (int) ((long) elements.length * (p + 1) / parts);
+			tasks.add(failures.guard(() -> {
+				R result = identity;
+				for (int i = from; i < to; i++) {
+					@SuppressWarnings("unchecked")
+					T element = (T) elements[i];
+					result = accumulator.apply(result, element);
+				}
+				partials[part] = result;
+			}));
+		}
+
+		execute(tasks);
+		failures.rethrow();
+
+		@SuppressWarnings("unchecked")
+		R result = parts > 0 ? (R) partials[0] : identity;
+		for (int p = 1; p < parts; p++) {
+			@SuppressWarnings("unchecked")
+			R partial = (R) partials[p];
+			result = combiner.apply(result, partial);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Executes all elements of the specified array in parallel if supported by the
 	 * underlying platform and the concrete implementation.
@@ -105,6 +319,36 @@ public interface ParallelExecutor {
 	 */
 	public abstract void execute(Iterator<? extends Runnable> tasks);
 
+	/**
+	 * Executes all elements of the specified {@link Collection} in parallel without
+	 * blocking the calling thread. The returned future is completed once all
+	 * runnables have either completed or thrown an exception.
+	 * <p>
+	 * The default implementation merely runs {@link #execute(Collection)} on the
+	 * common {@link ForkJoinPool}, which blocks one of its threads while waiting.
+	 * Implementations should override this to complete the future from the task
+	 * that finishes last instead.
+	 */
+	public default CompletableFuture<Void> executeAsync(Collection<? extends Runnable> tasks) {
+		return CompletableFuture.runAsync(() -> execute(tasks));
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Iterable} in parallel without blocking the calling thread. The returned
+	 * future is completed once all consumer operations have either completed or
+	 * thrown an exception.
+	 * <p>
+	 * The default implementation merely runs
+	 * {@link #forEachParallel(Iterable, Consumer)} on the common
+	 * {@link ForkJoinPool}, which blocks one of its threads while waiting.
+	 * Implementations should override this to complete the future from the task
+	 * that finishes last instead.
+	 */
+	public default <T> CompletableFuture<Void> forEachParallelAsync(Iterable<T> items, Consumer<? super T> consumer) {
+		return CompletableFuture.runAsync(() -> forEachParallel(items, consumer));
+	}
+
 	/**
 	 * Add a {@link Runnable} to this executor's batch. All runnables in the batch
 	 * can later be run at once.
@@ -117,4 +361,16 @@ public interface ParallelExecutor {
 	 */
 	public abstract void executeBatch();
 
+	/**
+	 * Executes all runnables in this executor's batch in parallel without blocking
+	 * the calling thread. The returned future is completed once all runnables have
+	 * either completed or thrown an exception.
+	 * <p>
+	 * The default implementation merely runs {@link #executeBatch()} on the common
+	 * {@link ForkJoinPool}, which blocks one of its threads while waiting.
+	 */
+	public default CompletableFuture<Void> executeBatchAsync() {
+		return CompletableFuture.runAsync(this::executeBatch);
+	}
+
 }
@@ -1,30 +1,564 @@
 package net.bbmsoft.bbm.utils.concurrent;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Base class for {@link ParallelExecutor} implementations that provides
+ * micro-batching of runnables via {@link #batch(Collection)} and
+ * {@link #executeBatch()}.
+ * <p>
+ * Batched runnables are collected in an epoch. Running the batch atomically
+ * swaps the current epoch for a new, empty one and executes the runnables of
+ * the old one, so every runnable is run exactly once and the batch does not
+ * grow any further once it has been run. Producers never block, not even while
+ * the batch is being run: they just add to the new epoch.
+ * <p>
+ * Optionally the batch can be flushed automatically once it reaches a certain
+ * size (see {@link #setBatchFlushSize(int)}) or once its oldest runnable has
+ * been waiting for a certain time (see {@link #setBatchLinger(Duration)}).
+ * Automatic flushes are run one at a time on a separate thread of the
+ * executor. That thread is stopped when the executor is shut down, flushes that
+ * are pending at that point are cancelled.
+ * <p>
+ * By default all batched runnables are kept in memory, so producers that
+ * outpace the flushes can exhaust the heap. With a {@link SpillPolicy} (see
+ * {@link #setBatchSpillPolicy(SpillPolicy)}), runnables beyond a maximum number
+ * per batch are spilled to disk instead and read back once the batch is run.
+ *
+ * @author Michael Bachmann
+ *
+ */
 public abstract class ParallelExecutorBase implements ParallelExecutor {
 
-	private final Queue<Runnable> batch;
+	/**
+	 * Flush size that disables flushing the batch when it reaches a certain size.
+	 * This is the default.
+	 */
+	public static final int NO_FLUSH_SIZE = 0;
+
+	private final AtomicReference<Epoch> batch;
+
+	private volatile int flushSize;
+	private volatile Duration linger;
+	private volatile SpillPolicy spillPolicy;
+
+	// created when automatic flushing is enabled for the first time
+	private volatile ScheduledThreadPoolExecutor flusher;
+
+	// set once the executor has been shut down, guarded by this
+	private boolean flushingStopped;
 
 	public ParallelExecutorBase() {
-		this.batch = new ConcurrentLinkedQueue<>();
+		this.batch = new AtomicReference<>(new Epoch());
+		this.flushSize = NO_FLUSH_SIZE;
+		this.linger = Duration.ZERO;
 	}
 
+	/**
+	 * Adds the specified {@link Runnable Runnables} to this executor's batch. If a
+	 * spill policy is set and the batch already holds its maximum number of
+	 * runnables in memory, the remaining runnables are spilled to disk.
+	 *
+	 * @throws UncheckedIOException
+	 *             if runnables had to be spilled, but could not be encoded or
+	 *             written, in which case none of the runnables have been batched
+	 */
 	@Override
 	public void batch(Collection<Runnable> runnables) {
-		this.batch.addAll(runnables);
+
+		if (runnables.isEmpty()) {
+			return;
+		}
+
+		Epoch epoch = enterCurrentEpoch();
+		int size;
+
+		try {
+			size = epoch.size.addAndGet(runnables.size());
+			try {
+				epoch.add(runnables, size - runnables.size(), this.spillPolicy);
+			} catch (RuntimeException e) {
+				// nothing has been added, so it must not count towards the flush size
+				epoch.size.addAndGet(-runnables.size());
+				throw e;
+			}
+		} finally {
+			epoch.exit();
+		}
+
+		int flushSize = this.flushSize;
+		int oldSize = size - runnables.size();
+
+		if (flushSize > 0 && size >= flushSize && oldSize < flushSize) {
+			// exactly one producer crosses the threshold, so only one flush is scheduled
+			ScheduledThreadPoolExecutor flusher = flusher();
+			if (flusher != null && this.batch.compareAndSet(epoch, new Epoch())) {
+				epoch.cancelLinger();
+				flusher.execute(() -> flush(epoch));
+			}
+		} else if (oldSize == 0) {
+			scheduleLinger(epoch);
+		}
+	}
+
+	// retries with the next epoch if the current one is being flushed right now
+	private Epoch enterCurrentEpoch() {
+
+		Epoch epoch;
+
+		do {
+			epoch = this.batch.get();
+		} while (!epoch.enter());
+
+		return epoch;
 	}
 
 	/**
 	 * Run all {@link Runnable Runnables} that are currently batched by this
 	 * executor. The exact behavior of this method depend's on the executor's
 	 * concrete implementation of {@link #execute(Collection)}.
+	 * <p>
+	 * The batch is emptied before the runnables are run, so they are only run once.
+	 * Runnables batched while this method is running are left for the next flush.
+	 * Spilled runnables are run after those kept in memory, one chunk at a time.
+	 * If running the runnables throws an exception, e.g. in fail-fast mode, the
+	 * spilled runnables that have not been run yet are dropped, which is recorded
+	 * as a {@link CancellationException} added to the exception as suppressed.
+	 *
+	 * @throws UncheckedIOException
+	 *             if spilled runnables could not be read back, in which case the
+	 *             remaining spilled runnables are dropped
 	 */
 	@Override
 	public void executeBatch() {
-		this.execute(this.batch);
+
+		Epoch epoch = this.batch.getAndSet(new Epoch());
+
+		epoch.cancelLinger();
+		run(epoch);
+	}
+
+	/**
+	 * Runs all {@link Runnable Runnables} that are currently batched by this
+	 * executor via {@link #executeAsync(Collection)}. Like
+	 * {@link #executeBatch()}, this empties the batch before the runnables are run
+	 * and records spilled runnables that are dropped because of a failure on the
+	 * exception the future is completed with.
+	 */
+	@Override
+	public CompletableFuture<Void> executeBatchAsync() {
+
+		Epoch epoch = this.batch.getAndSet(new Epoch());
+
+		epoch.cancelLinger();
+		epoch.seal();
+
+		SpillSegment spilled = epoch.spilled;
+
+		if (spilled == null) {
+			return executeAsync(new ArrayList<>(epoch.tasks));
+		}
+
+		CompletableFuture<Void> completion;
+
+		try {
+			completion = executeAsync(new ArrayList<>(epoch.tasks));
+		} catch (RuntimeException e) {
+			recordDropped(e, spilled);
+			delete(spilled);
+			throw e;
+		}
+
+		return completion.thenCompose(v -> executeSpilledAsync(spilled)).whenComplete((v, e) -> {
+			if (e != null) {
+				recordDropped(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e, spilled);
+			}
+			delete(spilled);
+		});
+	}
+
+	// the next chunk is only read once the previous one has been run
+	private CompletableFuture<Void> executeSpilledAsync(SpillSegment spilled) {
+
+		List<Runnable> chunk;
+
+		try {
+			chunk = spilled.read();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		if (chunk.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+
+		return executeAsync(chunk).thenCompose(v -> executeSpilledAsync(spilled));
+	}
+
+	/**
+	 * Sets the number of batched runnables at which the batch is flushed
+	 * automatically, without waiting for {@link #executeBatch()} to be called. The
+	 * flush happens asynchronously, the producer whose runnables filled up the
+	 * batch does not block.
+	 *
+	 * @param size
+	 *            the number of runnables that triggers a flush or
+	 *            {@link #NO_FLUSH_SIZE} to not flush the batch because of its size
+	 * @throws IllegalArgumentException
+	 *             if {@code size} is negative
+	 */
+	public void setBatchFlushSize(int size) {
+
+		if (size < 0) {
+			throw new IllegalArgumentException("Invalid flush size: " + size);
+		}
+
+		this.flushSize = size;
+	}
+
+	/**
+	 * @return the number of batched runnables at which the batch is flushed
+	 *         automatically or {@link #NO_FLUSH_SIZE} if it is not flushed because
+	 *         of its size
+	 * @see #setBatchFlushSize(int)
+	 */
+	public int getBatchFlushSize() {
+		return this.flushSize;
+	}
+
+	/**
+	 * Sets the maximum time a runnable may wait in the batch. Once the first
+	 * runnable has been added to an empty batch, the batch is flushed
+	 * automatically after that time, unless it has been run earlier. The setting
+	 * applies to runnables batched after it has been changed.
+	 *
+	 * @param linger
+	 *            the maximum time runnables may wait in the batch or
+	 *            {@link Duration#ZERO} to not flush the batch because of its age
+	 * @throws IllegalArgumentException
+	 *             if {@code linger} is negative
+	 */
+	public void setBatchLinger(Duration linger) {
+
+		if (linger.isNegative()) {
+			throw new IllegalArgumentException("Invalid linger time: " + linger);
+		}
+
+		this.linger = linger;
 	}
 
+	/**
+	 * @return the maximum time a runnable may wait in the batch or
+	 *         {@link Duration#ZERO} if the batch is not flushed because of its age
+	 * @see #setBatchLinger(Duration)
+	 */
+	public Duration getBatchLinger() {
+		return this.linger;
+	}
+
+	/**
+	 * Sets the policy for spilling batched runnables to disk once a batch holds a
+	 * certain number of them. The policy applies to runnables batched after it has
+	 * been changed.
+	 *
+	 * @param spillPolicy
+	 *            the spill policy or {@code null} to keep all batched runnables in
+	 *            memory
+	 */
+	public void setBatchSpillPolicy(SpillPolicy spillPolicy) {
+		this.spillPolicy = spillPolicy;
+	}
+
+	/**
+	 * @return the spill policy or {@code null} if all batched runnables are kept
+	 *         in memory
+	 * @see #setBatchSpillPolicy(SpillPolicy)
+	 */
+	public SpillPolicy getBatchSpillPolicy() {
+		return this.spillPolicy;
+	}
+
+	private void scheduleLinger(Epoch epoch) {
+
+		Duration linger = this.linger;
+		ScheduledThreadPoolExecutor flusher;
+
+		if (linger.isZero() || (flusher = flusher()) == null) {
+			return;
+		}
+
+		epoch.linger = flusher.schedule(() -> {
+			if (this.batch.compareAndSet(epoch, new Epoch())) {
+				flush(epoch);
+			}
+		}, linger.toNanos(), TimeUnit.NANOSECONDS);
+
+		// the epoch may have been flushed before the future was stored
+		if (this.batch.get() != epoch) {
+			epoch.cancelLinger();
+		}
+	}
+
+	// runs on the flusher thread, which has no one to rethrow exceptions to
+	private void flush(Epoch epoch) {
+		try {
+			run(epoch);
+		} catch (RuntimeException e) {
+			reportUncaught(e);
+		}
+	}
+
+	private void run(Epoch epoch) {
+
+		epoch.seal();
+
+		SpillSegment spilled = epoch.spilled;
+
+		try {
+
+			if (!epoch.tasks.isEmpty()) {
+				execute(new ArrayList<>(epoch.tasks));
+			}
+
+			if (spilled != null) {
+				List<Runnable> chunk;
+				while (!(chunk = spilled.read()).isEmpty()) {
+					execute(chunk);
+				}
+			}
+
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException e) {
+			if (spilled != null) {
+				recordDropped(e, spilled);
+			}
+			throw e;
+		} finally {
+			if (spilled != null) {
+				delete(spilled);
+			}
+		}
+	}
+
+	// spilled runnables that are deleted unread would otherwise be lost silently
+	private static void recordDropped(Throwable e, SpillSegment spilled) {
+
+		long dropped = spilled.getUnread();
+
+		if (dropped > 0) {
+			e.addSuppressed(new CancellationException(dropped + " spilled runnables have not been run"));
+		}
+	}
+
+	private static void delete(SpillSegment spilled) {
+		try {
+			spilled.delete();
+		} catch (IOException e) {
+			reportUncaught(new UncheckedIOException(e));
+		}
+	}
+
+	// returns null once flushing has been stopped
+	private ScheduledThreadPoolExecutor flusher() {
+
+		ScheduledThreadPoolExecutor flusher = this.flusher;
+
+		if (flusher == null || flusher.isShutdown()) {
+			synchronized (this) {
+				if (this.flushingStopped) {
+					return null;
+				}
+				flusher = this.flusher;
+				if (flusher == null) {
+					flusher = new ScheduledThreadPoolExecutor(1, new CustomThreadFactory("batch-flusher", true));
+					flusher.setKeepAliveTime(1, TimeUnit.MINUTES);
+					flusher.allowCoreThreadTimeOut(true);
+					flusher.setRemoveOnCancelPolicy(true);
+					flusher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+					this.flusher = flusher;
+				}
+			}
+		}
+
+		return flusher;
+	}
+
+	/**
+	 * Stops flushing the batch automatically. Flushes that are scheduled but have
+	 * not started yet are cancelled, a flush that is running right now is
+	 * completed. Runnables that are still batched are left for
+	 * {@link #executeBatch()}. Must be called by implementations when they are
+	 * shut down, since the flusher thread would otherwise hand runnables to a
+	 * shut down executor.
+	 */
+	protected void stopFlushing() {
+
+		ScheduledThreadPoolExecutor flusher;
+
+		synchronized (this) {
+			this.flushingStopped = true;
+			flusher = this.flusher;
+		}
+
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+	}
+
+	/**
+	 * Passes an exception thrown by a task to the current thread's uncaught
+	 * exception handler, just like a thread pool would do for a task that
+	 * terminates exceptionally. This allows implementations that run several tasks
+	 * within a single pool task to keep going after one of them failed.
+	 */
+	static void reportUncaught(Throwable e) {
+		Thread thread = Thread.currentThread();
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+
+	/**
+	 * The runnables batched between two flushes. Producers register while adding
+	 * to an epoch, so it can be sealed and run once they are done, without any
+	 * locking.
+	 */
+	private static class Epoch {
+
+		// set in the writer count once the epoch no longer accepts runnables
+		private static final int SEALED = Integer.MIN_VALUE;
+
+		private final Queue<Runnable> tasks;
+		private final AtomicInteger size;
+		private final AtomicInteger writers;
+
+		private volatile Future<?> linger;
+
+		// created once the first runnable is spilled
+		private volatile SpillSegment spilled;
+
+		public Epoch() {
+			this.tasks = new ConcurrentLinkedQueue<>();
+			this.size = new AtomicInteger();
+			this.writers = new AtomicInteger();
+		}
+
+		/**
+		 * Adds runnables that have been counted in the size of the epoch already,
+		 * spilling those beyond the in-memory maximum of the spill policy.
+		 *
+		 * @param position
+		 *            the size of the epoch before the runnables were counted
+		 */
+		public void add(Collection<Runnable> runnables, int position, SpillPolicy spillPolicy) {
+
+			int inMemory = spillPolicy != null ? spillPolicy.getMaxInMemory() - position : runnables.size();
+
+			if (inMemory >= runnables.size()) {
+				this.tasks.addAll(runnables);
+				return;
+			}
+
+			List<Runnable> spill = new ArrayList<>(runnables.size() - Math.max(0, inMemory));
+			Iterator<Runnable> it = runnables.iterator();
+
+			for (int i = 0; i < inMemory; i++) {
+				it.next();
+			}
+
+			it.forEachRemaining(spill::add);
+
+			// spill first, so if that fails, none of the runnables have been added
+			try {
+				segment(spillPolicy).append(spill);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			it = runnables.iterator();
+
+			for (int i = 0; i < inMemory; i++) {
+				this.tasks.add(it.next());
+			}
+		}
+
+		private SpillSegment segment(SpillPolicy spillPolicy) throws IOException {
+
+			SpillSegment spilled = this.spilled;
+
+			if (spilled == null) {
+				synchronized (this) {
+					spilled = this.spilled;
+					if (spilled == null) {
+						spilled = SpillSegment.create(spillPolicy);
+						this.spilled = spilled;
+					}
+				}
+			}
+
+			return spilled;
+		}
+
+		/**
+		 * @return {@code true} if the calling thread may add to this epoch,
+		 *         {@code false} if it has been sealed
+		 */
+		public boolean enter() {
+
+			int writers;
+
+			do {
+				writers = this.writers.get();
+				if (writers < 0) {
+					return false;
+				}
+			} while (!this.writers.compareAndSet(writers, writers + 1));
+
+			return true;
+		}
+
+		public void exit() {
+			this.writers.decrementAndGet();
+		}
+
+		/**
+		 * Stops the epoch from accepting runnables and waits for producers that are
+		 * still adding to it, which only takes as long as a single
+		 * {@link Queue#addAll(Collection)} or spilling their runnables.
+		 */
+		public void seal() {
+
+			int writers;
+
+			do {
+				writers = this.writers.get();
+			} while (writers >= 0 && !this.writers.compareAndSet(writers, writers | SEALED));
+
+			while (this.writers.get() != SEALED) {
+				Thread.yield();
+			}
+		}
+
+		public void cancelLinger() {
+			Future<?> linger = this.linger;
+			if (linger != null) {
+				linger.cancel(false);
+			}
+		}
+	}
 }
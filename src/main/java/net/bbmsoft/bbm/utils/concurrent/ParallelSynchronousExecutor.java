@@ -1,19 +1,36 @@
 package net.bbmsoft.bbm.utils.concurrent;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.ObjIntConsumer;
 import java.util.stream.Stream;
 
+import net.bbmsoft.bbm.utils.concurrent.Batch.FailurePolicy;
+import net.bbmsoft.bbm.utils.concurrent.ProgressReporter.Progress;
+
 /**
  * Helper class to parallelize the execution of several tasks. This does a
  * similar thing to {@link Stream#forEach(Consumer)} on a parallel Stream but
@@ -22,18 +39,156 @@ import java.util.stream.Stream;
  * of CPU cores which might not always give the best performance for a large
  * number of tasks with a high latency but low CPU load. Also this Executor
  * allows to change its threads' priority.
+ * <p>
+ * For tasks that spend most of their time blocking, e.g. on I/O, an executor
+ * running every task in its own virtual thread can be created with
+ * {@link #withVirtualThreads()} if supported by the running JVM.
+ * <p>
+ * By default every element is submitted to the thread pool as a separate task.
+ * For a large number of small tasks the overhead of this can easily outweigh
+ * the actual work, so {@link RandomAccess} lists and arrays can optionally be
+ * split into contiguous partitions that are processed as one task each (see
+ * {@link #setPartitions(int)}). In {@link #DYNAMIC_PARTITIONING} mode, one task
+ * per pool thread claims elements from the input as it goes instead, so
+ * elements are dispatched without allocating anything per element.
+ * <p>
+ * Exceptions thrown by tasks are passed to the uncaught exception handler of
+ * the pool thread by default. Alternatively the executor can be put into
+ * fail-fast mode (see {@link #setFailFast(boolean)}), in which the first
+ * failure aborts all remaining work of the same call and is rethrown in the
+ * calling thread.
+ * <p>
+ * Instead of guessing the number of threads for tasks with a high latency,
+ * the number of tasks in flight can be adjusted at runtime based on the
+ * measured task latency (see {@link #setAdaptiveConcurrency(int)}).
+ * <p>
+ * Calls that have to complete within a certain time can be made with a timeout
+ * or deadline (see e.g. {@link #execute(Collection, Duration)}). Such calls
+ * return when the deadline passes, cancel the remaining work and report which
+ * tasks have completed, failed or not been run at all.
+ * <p>
+ * Instead of just waiting for the pool threads, the calling thread can also be
+ * made to run tasks itself (see {@link #setCallerRuns(boolean)}). This is always
+ * the case for calls made from within a task, which makes it safe to call this
+ * executor recursively, even if it has a fixed number of threads.
+ * <p>
+ * Executors can record metrics like queue wait and run times and publish them
+ * via JMX (see {@link #setMetricsEnabled(boolean)}).
+ * <p>
+ * Every executor owns its thread pool, which should be shut down once the
+ * executor is no longer needed (see {@link #close()}). Components that do not
+ * need a private pool can share executors by name via {@link SharedExecutors}
+ * instead of creating their own.
  *
  * @author Michael Bachmann
  *
  */
-public class ParallelSynchronousExecutor extends ParallelExecutorBase implements ObservableParallelExecutor {
+public class ParallelSynchronousExecutor extends ParallelExecutorBase
+		implements ObservableParallelExecutor, AutoCloseable {
+
+	/**
+	 * Partitioning mode in which every element is submitted to the thread pool as
+	 * a separate task. This is the default.
+	 */
+	public static final int NO_PARTITIONING = 0;
+
+	/**
+	 * Partitioning mode in which the number of partitions is derived from the size
+	 * of the thread pool.
+	 */
+	public static final int AUTO_PARTITIONING = -1;
+
+	/**
+	 * Partitioning mode in which one task per pool thread is submitted, which
+	 * repeatedly claims the next chunk of elements until all are processed. Chunks
+	 * get smaller as the input runs out, so threads that finish early keep
+	 * picking up work. This also applies to iterators and other collections,
+	 * whose elements are retrieved one at a time by the tasks themselves.
+	 */
+	public static final int DYNAMIC_PARTITIONING = -2;
+
+	/**
+	 * Streaming window size that disables streaming, meaning that iterators are
+	 * drained completely before the first task is started. This is the default.
+	 */
+	public static final int NO_STREAMING = 0;
+
+	/**
+	 * Maximum adaptive concurrency limit that disables adaptive concurrency, so
+	 * the number of tasks in flight is only limited by the thread pool. This is the
+	 * default.
+	 */
+	public static final int NO_ADAPTIVE_CONCURRENCY = 0;
 
-	private final Executor threadPool;
+	private static final Duration DEFAULT_PROGRESS_INTERVAL = Duration.ofMillis(100);
 
-	private volatile ProgressMonitor progressmonitor;
+	// number of partitions per pool thread in auto mode; more than one partition
+	// per thread allows threads that finish early to pick up remaining work
+	private static final int PARTITIONS_PER_THREAD = 4;
 
-	private ParallelSynchronousExecutor(Executor backEnd) {
+	// how long a deferred task waits before it is offered to a saturated pool again
+	private static final long REOFFER_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ExecutorService threadPool;
+	private final int parallelism;
+
+	// name under which this executor is registered in SharedExecutors, if any
+	volatile String sharedName;
+
+	private volatile ProgressReporter progressReporter;
+	private volatile Duration progressInterval;
+	private volatile int partitions;
+	private volatile int streamingWindow;
+	private volatile boolean failFast;
+	private volatile boolean callerRuns;
+	private volatile AdaptiveConcurrencyLimit concurrencyLimit;
+	private volatile TokenBucket rateLimit;
+	private volatile RetryPolicy retryPolicy;
+	private volatile ExecutorMetrics metrics;
+
+	private ParallelSynchronousExecutor(ExecutorService backEnd) {
 		this.threadPool = backEnd;
+		this.parallelism = parallelismOf(backEnd);
+		this.partitions = NO_PARTITIONING;
+		this.streamingWindow = NO_STREAMING;
+		this.progressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+		if (nameOf(backEnd) != null && ExecutorMetrics.isEnabledByDefault()) {
+			setMetricsEnabled(true);
+		}
+	}
+
+	// the name of the threads, if they are named
+	private static String nameOf(ExecutorService executor) {
+
+		ThreadFactory threadFactory = null;
+
+		if (executor instanceof ThreadPoolExecutor) {
+			threadFactory = ((ThreadPoolExecutor) executor).getThreadFactory();
+		} else if (executor instanceof ThreadPerTaskExecutor) {
+			threadFactory = ((ThreadPerTaskExecutor) executor).getThreadFactory();
+		}
+
+		return threadFactory instanceof CustomThreadFactory ? ((CustomThreadFactory) threadFactory).getName() : null;
+	}
+
+	private static int parallelismOf(Executor executor) {
+
+		if (executor instanceof ThreadPoolExecutor) {
+			int maxPoolSize = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+			if (maxPoolSize < Integer.MAX_VALUE) {
+				return maxPoolSize;
+			}
+		}
+
+		if (executor instanceof ThreadPerTaskExecutor) {
+			int maxConcurrency = ((ThreadPerTaskExecutor) executor).getMaxConcurrency();
+			if (maxConcurrency > 0) {
+				return maxConcurrency;
+			}
+		}
+
+		return Runtime.getRuntime().availableProcessors();
 	}
 
 	/**
@@ -140,55 +295,139 @@ public class ParallelSynchronousExecutor extends ParallelExecutorBase implements
 				new CustomThreadFactory(name, daemon, priority)));
 	}
 
+	/**
+	 * Creates a {@link ParallelSynchronousExecutor} with a thread pool created
+	 * from the specified {@link ThreadPoolOptions}. If the pool's queue is bounded
+	 * and its rejection policy throws a {@link RejectedExecutionException}
+	 * because it is saturated, the calling thread of a synchronous call runs the
+	 * task itself, since it would only be waiting otherwise. Asynchronous calls
+	 * like {@link #executeAsync(Collection)} must not block the calling thread, so
+	 * the exception is passed on to the caller instead. Either way, the rejection
+	 * is counted in the {@link #getMetrics() metrics}.
+	 */
+	public static ParallelSynchronousExecutor withThreadPool(ThreadPoolOptions options) {
+		return new ParallelSynchronousExecutor(options.createThreadPool());
+	}
+
+	/**
+	 * Creates a {@link ParallelSynchronousExecutor} that runs every task in a new
+	 * virtual thread. This is well suited for a large number of tasks that spend
+	 * most of their time blocking, since a blocked virtual thread does not occupy
+	 * a platform thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM does not support virtual threads
+	 * @see CustomThreadFactory#isVirtualThreadSupported()
+	 */
+	public static ParallelSynchronousExecutor withVirtualThreads() {
+		return new ParallelSynchronousExecutor(
+				new ThreadPerTaskExecutor(CustomThreadFactory.virtualThreadFactory(), 0));
+	}
+
+	/**
+	 * Creates a {@link ParallelSynchronousExecutor} that runs every task in a new
+	 * named virtual thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM does not support virtual threads
+	 * @see CustomThreadFactory#isVirtualThreadSupported()
+	 */
+	public static ParallelSynchronousExecutor withVirtualThreads(String name) {
+		return new ParallelSynchronousExecutor(new ThreadPerTaskExecutor(CustomThreadFactory.virtual(name), 0));
+	}
+
+	/**
+	 * Creates a {@link ParallelSynchronousExecutor} that runs every task in a new
+	 * named virtual thread, with at most the specified number of tasks running at
+	 * the same time. This is useful to avoid overloading a downstream resource.
+	 * Tasks waiting for their turn do so in their own virtual thread, so they do
+	 * not block the caller or any platform thread.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM does not support virtual threads
+	 * @see CustomThreadFactory#isVirtualThreadSupported()
+	 */
+	public static ParallelSynchronousExecutor withVirtualThreads(String name, int maxConcurrency) {
+		return new ParallelSynchronousExecutor(
+				new ThreadPerTaskExecutor(CustomThreadFactory.virtual(name), maxConcurrency));
+	}
+
 	/**
 	 * Executes all given {@link Runnable Runnables} in parallel. The method will
 	 * return as soon as all runnables have either completed or thrown an exception.
 	 *
 	 * @param actions
 	 *            all the {@link Runnable Runnables} to be executed
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any runnable throws an exception or the
+	 *             calling thread is interrupted (see {@link #setFailFast(boolean)})
 	 */
 	@Override
 	public void execute(Collection<? extends Runnable> actions) {
 
-		CountDownLatch cdl = new CountDownLatch(actions.size());
-		ProgressMonitor monitor = this.progressmonitor;
-		int total = actions.size();
-		AtomicInteger counter = monitor != null ? new AtomicInteger() : null;
+		Batch batch = newBatch(FailurePolicy.REPORT);
+		int partitions = partitionCount(actions);
+		Progress progress = startProgress(actions.size());
 
-		if (monitor != null) {
-			monitor.updateProgress(0, total);
-		}
+		try {
 
-		for (Runnable a : actions) {
-			this.threadPool.execute(() -> {
-				try {
-					a.run();
-				} finally {
-					if (monitor != null) {
-						monitor.updateProgress(counter.incrementAndGet(), total);
-					}
-					cdl.countDown();
-				}
-			});
-		}
+			if (partitions > 0) {
+				List<? extends Runnable> list = (List<? extends Runnable>) actions;
+				forEachPartitioned(batch, list.size(), partitions, i -> list.get(i).run(), progress);
+				return;
+			}
 
-		try {
-			cdl.await();
-		} catch (InterruptedException e) {
-			return;
+			if (isPulling()) {
+				forEachPulled(batch, actions.iterator(), Runnable::run, progress);
+				return;
+			}
+
+			for (Runnable a : actions) {
+				submit(batch, a, progress);
+			}
+
+			batch.await();
+
+		} finally {
+			finishProgress(progress);
 		}
 	}
 
 	/**
 	 * Executes all given {@link Runnable Runnables} in parallel. The method will
 	 * return as soon as all runnables have either completed or thrown an exception.
+	 * <p>
+	 * If streaming is enabled (see {@link #setStreamingWindow(int)}), runnables are
+	 * only retrieved from the iterator when there is room for them in the
+	 * streaming window. Otherwise the iterator is drained completely before the
+	 * first runnable is started.
 	 *
 	 * @param actions
 	 *            all the {@link Runnable Runnables} to be executed
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any runnable throws an exception or the
+	 *             calling thread is interrupted (see {@link #setFailFast(boolean)})
 	 */
 	@Override
 	public void execute(Iterator<? extends Runnable> actions) {
 
+		int window = this.streamingWindow;
+
+		if (isPulling()) {
+			Progress progress = startProgress(-1);
+			try {
+				forEachPulled(newBatch(FailurePolicy.REPORT), actions, Runnable::run, progress);
+			} finally {
+				finishProgress(progress);
+			}
+			return;
+		}
+
+		if (window != NO_STREAMING) {
+			executeStreaming(actions, window);
+			return;
+		}
+
 		List<Runnable> runnables = new ArrayList<>();
 
 		while (actions.hasNext()) {
@@ -202,6 +441,11 @@ public class ParallelSynchronousExecutor extends ParallelExecutorBase implements
 	 * Perform the specified {@link Consumer} on every element of the specified
 	 * {@link Iterable} in parallel. The method will return as soon as all consumer
 	 * operations have successfully completed or thrown an exception.
+	 *
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
 	 */
 	// optimization: avoid unnecessarily copying into a new collection
 	@Override
@@ -212,30 +456,58 @@ public class ParallelSynchronousExecutor extends ParallelExecutorBase implements
 			return;
 		}
 
-		int size = ((Collection<T>) items).size();
+		Batch batch = newBatch(FailurePolicy.REPORT);
+		int partitions = partitionCount((Collection<T>) items);
 
-		CountDownLatch cdl = new CountDownLatch(size);
+		if (partitions > 0) {
+			List<T> list = (List<T>) items;
+			forEachPartitioned(batch, list.size(), partitions, i -> consumer.accept(list.get(i)));
+			return;
+		}
 
-		items.forEach(i -> this.threadPool.execute(() -> {
-			try {
-				consumer.accept(i);
-			} finally {
-				cdl.countDown();
-			}
-		}));
+		if (isPulling()) {
+			forEachPulled(batch, items.iterator(), consumer, null);
+			return;
+		}
 
-		try {
-			cdl.await();
-		} catch (InterruptedException e) {
+		for (T item : items) {
+			submit(batch, () -> consumer.accept(item));
+		}
+
+		batch.await();
+	}
+
+	/**
+	 * Perform the specified {@link Consumer} on every element of the specified
+	 * {@link Iterator} in parallel. The method will return as soon as all consumer
+	 * operations have successfully completed or thrown an exception.
+	 *
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
+	 */
+	// optimization: no runnable per element in dynamic partitioning mode
+	@Override
+	public <T> void forEachParallel(Iterator<T> items, Consumer<? super T> consumer) {
+
+		if (isPulling()) {
+			forEachPulled(newBatch(FailurePolicy.REPORT), items, consumer, null);
 			return;
 		}
 
+		execute(new TransformingIterator<>(items, item -> () -> consumer.accept(item)));
 	}
 
 	/**
 	 * Perform the specified {@link Consumer} on every element of the specified
 	 * {@link Iterable} in parallel. The method will return as soon as all consumer
 	 * operations have successfully completed or thrown an exception.
+	 *
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
 	 */
 	// optimization: avoid unnecessarily copying into a new collection
 	@Override
@@ -246,32 +518,1461 @@ public class ParallelSynchronousExecutor extends ParallelExecutorBase implements
 			return;
 		}
 
-		int size = ((Collection<T>) items).size();
+		forEachIndexed(newBatch(FailurePolicy.REPORT), (Collection<T>) items, (item, i) -> consumer.accept(item, i));
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel without blocking
+	 * the calling thread. No thread waits for the runnables: the returned future is
+	 * completed by whichever runnable finishes last, so dependent stages that are
+	 * not run asynchronously run on that thread.
+	 * <p>
+	 * Exceptions thrown by the runnables are handled as for
+	 * {@link #execute(Collection)}, except that in fail-fast mode the future is
+	 * completed exceptionally with a {@link ParallelExecutionException} instead of
+	 * it being thrown. Cancelling the future skips runnables that have not been
+	 * started yet. Neither the streaming window nor the adaptive concurrency limit
+	 * apply to asynchronous calls, since they would block the calling thread.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @return a future that is completed once all runnables have either completed
+	 *         or thrown an exception
+	 * @throws RejectedExecutionException
+	 *             if the thread pool does not accept a runnable, e.g. because its
+	 *             queue is full; runnables submitted before it are skipped unless
+	 *             they have already been started
+	 */
+	@Override
+	public CompletableFuture<Void> executeAsync(Collection<? extends Runnable> actions) {
+
+		List<? extends Runnable> list = asRandomAccessList(actions);
+		Progress progress = startProgress(list.size());
 
-		CountDownLatch cdl = new CountDownLatch(size);
+		CompletableFuture<Void> completion = forEachAsync(list.size(), i -> list.get(i).run(), progress);
+		completion.whenComplete((r, e) -> finishProgress(progress));
 
-		int counter = 0;
-		for (T item : items) {
-			final int i = counter++;
-			this.threadPool.execute(() -> {
-				try {
-					consumer.accept(item, i);
-				} finally {
-					cdl.countDown();
+		return completion;
+	}
+
+	/**
+	 * Perform the specified {@link Consumer} on every element of the specified
+	 * {@link Iterable} in parallel without blocking the calling thread. The
+	 * semantics are the same as for {@link #executeAsync(Collection)}.
+	 *
+	 * @return a future that is completed once all consumer operations have either
+	 *         completed or thrown an exception
+	 */
+	@Override
+	public <T> CompletableFuture<Void> forEachParallelAsync(Iterable<T> items, Consumer<? super T> consumer) {
+
+		List<T> list;
+
+		if (items instanceof Collection) {
+			list = asRandomAccessList((Collection<T>) items);
+		} else {
+			list = new ArrayList<>();
+			items.forEach(list::add);
+		}
+
+		return forEachAsync(list.size(), i -> consumer.accept(list.get(i)), null);
+	}
+
+	/**
+	 * Perform the specified {@link ObjIntConsumer} on every element of the
+	 * specified {@link Iterable} and its index in parallel, without boxing the
+	 * indices. The method will return as soon as all consumer operations have
+	 * successfully completed or thrown an exception.
+	 *
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
+	 */
+	@Override
+	public <T> void forEachParallelIndexed(Iterable<T> items, ObjIntConsumer<? super T> consumer) {
+
+		if (!(items instanceof Collection)) {
+			forEachParallelIndexed(items.iterator(), consumer);
+			return;
+		}
+
+		forEachIndexed(newBatch(FailurePolicy.REPORT), (Collection<T>) items, consumer);
+	}
+
+	/**
+	 * Perform the specified {@link IntConsumer} on every {@code int} value from
+	 * {@code from} (inclusive) to {@code to} (exclusive) in parallel. The range is
+	 * always split into contiguous partitions, as many as set via
+	 * {@link #setPartitions(int)} or as in {@link #AUTO_PARTITIONING} mode if
+	 * partitioning is disabled, so there is no allocation per value.
+	 *
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
+	 */
+	@Override
+	public void forRange(int from, int to, IntConsumer consumer) {
+
+		if (to <= from) {
+			return;
+		}
+
+		int size = to - from;
+
+		if (size < 0) {
+			// the range is too large for an int, which the long version can handle
+			forLongRange(from, to, i -> consumer.accept((int) i));
+			return;
+		}
+
+		forEachPartitioned(newBatch(FailurePolicy.REPORT), size, rangePartitionCount(size),
+				i -> consumer.accept(from + i));
+	}
+
+	/**
+	 * Perform the specified {@link LongConsumer} on every {@code long} value from
+	 * {@code from} (inclusive) to {@code to} (exclusive) in parallel. The range is
+	 * split into partitions just like in {@link #forRange(int, int, IntConsumer)}.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the range contains more than {@link Long#MAX_VALUE} values
+	 * @throws ParallelExecutionException
+	 *             in fail-fast mode, if any consumer operation throws an exception
+	 *             or the calling thread is interrupted (see
+	 *             {@link #setFailFast(boolean)})
+	 */
+	@Override
+	public void forLongRange(long from, long to, LongConsumer consumer) {
+
+		if (to <= from) {
+			return;
+		}
+
+		long size;
+
+		try {
+			size = Math.subtractExact(to, from);
+		} catch (ArithmeticException e) {
+			throw new IllegalArgumentException("Range too large: [" + from + ", " + to + ")", e);
+		}
+
+		int partitions = rangePartitionCount(size);
+		Batch batch = newBatch(FailurePolicy.REPORT);
+		RetryPolicy retryPolicy = this.retryPolicy;
+
+		for (int p = 0; p < partitions; p++) {
+			long start = from + partitionBound(size, p, partitions);
+			long end = from + partitionBound(size, p + 1, partitions);
+			submit(batch, () -> {
+				for (long i = start; i < end && !batch.isCancelled(); i++) {
+					try {
+						consumer.accept(i);
+					} catch (RuntimeException | Error e) {
+						long value = i;
+						elementFailed(batch, () -> consumer.accept(value), null, retryPolicy, e);
+					}
 				}
 			});
 		}
 
-		try {
-			cdl.await();
-		} catch (InterruptedException e) {
-			return;
+		batch.await();
+	}
+
+	/**
+	 * Applies the specified {@link Function} to every element of the specified
+	 * {@link Collection} in parallel and returns the results in the collection's
+	 * iteration order. Results are written directly to their slot in the result
+	 * list, {@link RandomAccess} lists are partitioned as described in
+	 * {@link #setPartitions(int)}.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if the calling thread is interrupted before all results are
+	 *             available, once the elements that are already being processed
+	 *             are done; the interrupt status is restored
+	 */
+	@Override
+	public <T, R> List<R> mapParallel(Collection<T> items, Function<? super T, ? extends R> mapper) {
+
+		Object[] results = new Object[items.size()];
+
+		forEachIndexed(newBatch(FailurePolicy.COLLECT), items, (item, i) -> results[i] = mapper.apply(item));
+
+		@SuppressWarnings("unchecked")
+		List<R> list = (List<R>) Arrays.asList(results);
+		return list;
+	}
+
+	/**
+	 * Performs a parallel reduction on the elements of the specified
+	 * {@link Collection}. Each pool task reduces one contiguous partition of the
+	 * collection into a partial result, the partial results are combined in order
+	 * once all tasks are complete. Unless a fixed number of partitions has been
+	 * set (see {@link #setPartitions(int)}), there is one partition per pool
+	 * thread.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if the calling thread is interrupted before all partial results
+	 *             are available, once the partitions that are already being
+	 *             reduced are done; the interrupt status is restored
+	 */
+	@Override
+	public <T, R> R reduceParallel(Collection<T> items, R identity, BiFunction<R, ? super T, R> accumulator,
+			BinaryOperator<R> combiner) {
+
+		List<?> list = items instanceof List && items instanceof RandomAccess ? (List<?>) items
+				: Arrays.asList(items.toArray());
+		int partitions = Math.min(list.size(), this.partitions > 0 ? this.partitions : this.parallelism);
+		Object[] partials = new Object[partitions];
+
+		forEachPartition(newBatch(FailurePolicy.COLLECT), list.size(), partitions, (partition, from, to) -> {
+			R result = identity;
+			for (int i = from; i < to; i++) {
+				@SuppressWarnings("unchecked")
+				T item = (T) list.get(i);
+				result = accumulator.apply(result, item);
+			}
+			partials[partition] = result;
+		});
+
+		@SuppressWarnings("unchecked")
+		R result = partitions > 0 ? (R) partials[0] : identity;
+		for (int p = 1; p < partitions; p++) {
+			@SuppressWarnings("unchecked")
+			R partial = (R) partials[p];
+			result = combiner.apply(result, partial);
 		}
 
+		return result;
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel, but returns no
+	 * later than the specified timeout has elapsed. At that point, runnables that
+	 * have not been started yet are skipped and running ones are interrupted.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @param timeout
+	 *            the maximum time to wait for the runnables to complete
+	 * @return an {@link ExecutionReport} telling which runnables have completed,
+	 *         failed, been cancelled or not been started, identified by their
+	 *         index in the iteration order of {@code actions}
+	 * @see #execute(Collection, Instant)
+	 */
+	public ExecutionReport execute(Collection<? extends Runnable> actions, Duration timeout) {
+		return executeUntil(actions, deadlineOf(timeout));
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel, but returns no
+	 * later than at the specified deadline. At that point, runnables that have not
+	 * been started yet are skipped and running ones are interrupted.
+	 * <p>
+	 * Exceptions thrown by the runnables are not propagated but included in the
+	 * returned report. In fail-fast mode the first exception cancels the
+	 * remaining runnables just as the deadline would. If the calling thread is
+	 * interrupted, the remaining runnables are cancelled as well and the method
+	 * returns right away with the interrupt status set.
+	 * <p>
+	 * The calling thread does not run any runnables itself, regardless of
+	 * {@link #setCallerRuns(boolean)}, since it could not return on time while
+	 * running one. Only calls made from within a task still let the calling
+	 * thread participate to avoid starving the pool. Such calls may return late
+	 * by up to the run time of one runnable.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @param deadline
+	 *            the point in time at which the method returns at the latest
+	 * @return an {@link ExecutionReport} telling which runnables have completed,
+	 *         failed, been cancelled or not been started, identified by their
+	 *         index in the iteration order of {@code actions}
+	 */
+	public ExecutionReport execute(Collection<? extends Runnable> actions, Instant deadline) {
+		return executeUntil(actions, deadlineOf(deadline));
+	}
+
+	/**
+	 * Perform the specified {@link Consumer} on every element of the specified
+	 * {@link Collection} in parallel, but return no later than the specified
+	 * timeout has elapsed. The semantics are the same as for
+	 * {@link #execute(Collection, Instant)}.
+	 *
+	 * @return an {@link ExecutionReport} telling for which elements the consumer
+	 *         has completed, failed, been cancelled or not been started,
+	 *         identified by their index in the iteration order of {@code items}
+	 */
+	public <T> ExecutionReport forEachParallel(Collection<T> items, Consumer<? super T> consumer, Duration timeout) {
+		return forEachUntil(items, consumer, deadlineOf(timeout));
+	}
+
+	/**
+	 * Perform the specified {@link Consumer} on every element of the specified
+	 * {@link Collection} in parallel, but return no later than at the specified
+	 * deadline. The semantics are the same as for
+	 * {@link #execute(Collection, Instant)}.
+	 *
+	 * @return an {@link ExecutionReport} telling for which elements the consumer
+	 *         has completed, failed, been cancelled or not been started,
+	 *         identified by their index in the iteration order of {@code items}
+	 */
+	public <T> ExecutionReport forEachParallel(Collection<T> items, Consumer<? super T> consumer, Instant deadline) {
+		return forEachUntil(items, consumer, deadlineOf(deadline));
 	}
 
+	/**
+	 * Sets the {@link ProgressMonitor} the progress of calls to e.g.
+	 * {@link #execute(Collection)} is reported to. Workers only count completed
+	 * tasks, the monitor is updated from a separate thread at the rate set via
+	 * {@link #setProgressInterval(Duration)}, so even a slow monitor never holds
+	 * up the workers. Once a call has returned, it is always reported as complete,
+	 * but that update may arrive shortly afterwards.
+	 *
+	 * @param monitor
+	 *            the monitor or {@code null} to not report progress
+	 */
 	@Override
 	public void setProgressMonitor(ProgressMonitor monitor) {
-		this.progressmonitor = monitor;
+		this.progressReporter = monitor != null ? new ProgressReporter(monitor, this.progressInterval) : null;
+	}
+
+	/**
+	 * Returns a {@link ProgressMonitor} that forwards to the one set via
+	 * {@link #setProgressMonitor(ProgressMonitor)} in the same way progress is
+	 * reported, i.e. from a separate thread at a limited rate. Tasks can use it to
+	 * report messages or errors without contending for the monitor. Messages
+	 * reported in quick succession are coalesced, so only the latest one is passed
+	 * on. Errors are passed on in batches, critical ones right away.
+	 *
+	 * @return the rate limited monitor or {@code null} if no monitor has been set
+	 */
+	public ProgressMonitor getProgressMonitor() {
+		return this.progressReporter;
+	}
+
+	/**
+	 * Sets the minimum interval between two updates of the {@link ProgressMonitor}.
+	 * Any updates in between are coalesced. The default is 100 milliseconds.
+	 *
+	 * @param interval
+	 *            the minimum interval or {@link Duration#ZERO} to pass every
+	 *            update on as soon as possible
+	 * @throws IllegalArgumentException
+	 *             if {@code interval} is negative
+	 */
+	public void setProgressInterval(Duration interval) {
+
+		if (interval.isNegative()) {
+			throw new IllegalArgumentException("Invalid progress interval: " + interval);
+		}
+
+		this.progressInterval = interval;
+
+		ProgressReporter reporter = this.progressReporter;
+		if (reporter != null) {
+			reporter.setInterval(interval);
+		}
+	}
+
+	/**
+	 * @return the minimum interval between two updates of the
+	 *         {@link ProgressMonitor}
+	 * @see #setProgressInterval(Duration)
+	 */
+	public Duration getProgressInterval() {
+		return this.progressInterval;
+	}
+
+	/**
+	 * Creates a {@link KeyedExecutor} that runs its tasks on this executor's
+	 * thread pool. Tasks with the same key run one after the other in submission
+	 * order, tasks with different keys run in parallel, alongside the tasks of
+	 * any other calls to this executor.
+	 */
+	public <K> KeyedExecutor<K> keyed() {
+		return new KeyedExecutor<>(this.threadPool);
+	}
+
+	/**
+	 * Starts building a {@link Pipeline} whose stages run on this executor's
+	 * thread pool, alongside the tasks of any other calls to this executor. None
+	 * of the settings of this executor apply to pipelines, each stage has its own
+	 * parallelism instead.
+	 */
+	public <I> Pipeline.Builder<I, I> pipeline() {
+		return Pipeline.builder(this.threadPool);
+	}
+
+	/**
+	 * Sets the number of contiguous partitions {@link RandomAccess} lists and
+	 * arrays are split into. Each partition is processed by a single task, which
+	 * greatly reduces the dispatch overhead for a large number of small tasks.
+	 * Other collections and iterators are only affected by
+	 * {@link #DYNAMIC_PARTITIONING}, in which their elements are retrieved by the
+	 * pool tasks under a lock, one at a time, so the streaming window does not
+	 * apply to them. Nothing is partitioned while a rate limit is set (see
+	 * {@link #setRateLimit(TokenBucket)}).
+	 * <p>
+	 * Elements are dispatched without allocating anything per element in all
+	 * modes but {@link #NO_PARTITIONING}, unless an element fails and is retried.
+	 * Dynamic partitioning balances the load best if elements take very different
+	 * amounts of time.
+	 *
+	 * @param partitions
+	 *            the number of partitions, {@link #AUTO_PARTITIONING} to derive
+	 *            the number of partitions from the size of the thread pool,
+	 *            {@link #DYNAMIC_PARTITIONING} to let the pool tasks claim elements
+	 *            as they go or {@link #NO_PARTITIONING} to submit every element as
+	 *            a separate task
+	 * @throws IllegalArgumentException
+	 *             if {@code partitions} is neither positive nor one of the
+	 *             constants mentioned above
+	 */
+	public void setPartitions(int partitions) {
+
+		if (partitions < DYNAMIC_PARTITIONING) {
+			throw new IllegalArgumentException("Invalid number of partitions: " + partitions);
+		}
+
+		this.partitions = partitions;
+	}
+
+	/**
+	 * @return the number of partitions {@link RandomAccess} lists and arrays are
+	 *         split into
+	 * @see #setPartitions(int)
+	 */
+	public int getPartitions() {
+		return this.partitions;
+	}
+
+	/**
+	 * Sets the maximum number of runnables retrieved from an {@link Iterator} that
+	 * may be in flight (i.e. submitted but not yet completed) at the same time.
+	 * When the window is full, the next runnable is only retrieved from the
+	 * iterator once a previous one has completed, so the memory used by a call
+	 * to {@link #execute(Iterator)} does not depend on the size of the input and
+	 * the first runnables are started right away, even if the iterator itself is
+	 * slow or lazily generated.
+	 * <p>
+	 * Since the total number of runnables is not known in advance while streaming,
+	 * progress is reported with a total of {@code -1} until the iterator is
+	 * exhausted.
+	 *
+	 * @param window
+	 *            the maximum number of runnables in flight or
+	 *            {@link #NO_STREAMING} to drain iterators completely before
+	 *            starting any of their runnables
+	 * @throws IllegalArgumentException
+	 *             if {@code window} is negative
+	 */
+	public void setStreamingWindow(int window) {
+
+		if (window < 0) {
+			throw new IllegalArgumentException("Invalid streaming window: " + window);
+		}
+
+		this.streamingWindow = window;
+	}
+
+	/**
+	 * @return the maximum number of runnables retrieved from an {@link Iterator}
+	 *         that may be in flight at the same time
+	 * @see #setStreamingWindow(int)
+	 */
+	public int getStreamingWindow() {
+		return this.streamingWindow;
+	}
+
+	/**
+	 * Enables or disables fail-fast mode. In fail-fast mode, as soon as one task
+	 * throws an exception or the calling thread is interrupted, tasks of the same
+	 * call that have not been started yet are skipped and running ones are
+	 * interrupted. Once the running tasks have stopped, a
+	 * {@link ParallelExecutionException} is thrown in the calling thread, with the
+	 * first exception as its cause and any others attached as suppressed
+	 * exceptions. This way a batch that is doomed to fail does not keep the pool
+	 * busy and no work of an aborted call keeps running in the background.
+	 * <p>
+	 * Otherwise, exceptions thrown by tasks are passed to the uncaught exception
+	 * handler of the thread they were thrown in and all other tasks keep running.
+	 * If the calling thread is interrupted, the method returns right away, leaving
+	 * submitted tasks running. This is the default.
+	 * <p>
+	 * Exceptions thrown by {@link #mapParallel(Collection, Function)} and
+	 * {@link #reduceParallel(Collection, Object, BiFunction, BinaryOperator)} are
+	 * always rethrown in the calling thread, fail-fast mode only makes them abort
+	 * the remaining work. These methods also never return incomplete results
+	 * when the calling thread is interrupted, but behave as in fail-fast mode.
+	 *
+	 * @param failFast
+	 *            {@code true} to enable fail-fast mode, {@code false} to disable it
+	 */
+	public void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	/**
+	 * @return {@code true} if fail-fast mode is enabled, {@code false} otherwise
+	 * @see #setFailFast(boolean)
+	 */
+	public boolean isFailFast() {
+		return this.failFast;
+	}
+
+	/**
+	 * Enables or disables caller participation. If enabled, the calling thread
+	 * does not sit idle while the pool threads are working, but runs tasks that
+	 * have not been picked up by a pool thread yet itself, until there are no
+	 * more such tasks. After that it only waits for the tasks still running on
+	 * pool threads. For short tasks this reduces both latency and the number of
+	 * hand-offs between threads. Disabled by default.
+	 * <p>
+	 * Note that tasks can then be run on the calling thread, so they must not rely
+	 * on being run on one of the pool's threads. Calls with a deadline ignore this
+	 * setting, see {@link #execute(Collection, Instant)}.
+	 * <p>
+	 * Calls made from within a task of any {@link ParallelSynchronousExecutor}
+	 * always behave as if caller participation was enabled, regardless of this
+	 * setting. The calling thread is busy working on the outer call's task then,
+	 * so just waiting could block all pool threads and deadlock the pool.
+	 *
+	 * @param callerRuns
+	 *            {@code true} to let the calling thread run tasks, {@code false}
+	 *            to only run tasks on pool threads
+	 */
+	public void setCallerRuns(boolean callerRuns) {
+		this.callerRuns = callerRuns;
+	}
+
+	/**
+	 * @return {@code true} if the calling thread participates in running tasks,
+	 *         {@code false} otherwise
+	 * @see #setCallerRuns(boolean)
+	 */
+	public boolean isCallerRuns() {
+		return this.callerRuns;
+	}
+
+	/**
+	 * Enables or disables adaptive concurrency. If enabled, the number of tasks in
+	 * flight at the same time is limited by a limit that is adjusted continuously
+	 * based on the measured task latency. As long as tasks do not get slower, the
+	 * limit is raised. Once tasks start to queue up on a downstream resource and
+	 * their latency rises, it is lowered again. This way the executor finds the
+	 * concurrency at which throughput peaks by itself and follows it as the load
+	 * changes, instead of the number of threads having to be guessed up front.
+	 * <p>
+	 * This is meant for tasks with a high latency that is caused by a resource
+	 * shared by all of them, like e.g. a remote service. The thread pool should
+	 * not limit the concurrency itself then, so a cached thread pool or virtual
+	 * threads are the best fit. The limit applies to all calls of this executor
+	 * combined, except for calls made from within a task, which run directly.
+	 * Callers block when submitting tasks while the limit is reached, calls with a
+	 * deadline no longer than until the deadline. Changes of the limit are
+	 * reported to the {@link ProgressMonitor}.
+	 *
+	 * @param maxConcurrency
+	 *            the maximum the limit can grow to or
+	 *            {@link #NO_ADAPTIVE_CONCURRENCY} to disable adaptive concurrency
+	 * @throws IllegalArgumentException
+	 *             if {@code maxConcurrency} is negative
+	 */
+	public void setAdaptiveConcurrency(int maxConcurrency) {
+
+		if (maxConcurrency < 0) {
+			throw new IllegalArgumentException("Invalid concurrency limit: " + maxConcurrency);
+		}
+
+		this.concurrencyLimit = maxConcurrency == NO_ADAPTIVE_CONCURRENCY ? null
+				: new AdaptiveConcurrencyLimit(this.parallelism, maxConcurrency, this::concurrencyLimitChanged);
+	}
+
+	/**
+	 * @return the maximum the adaptive concurrency limit can grow to or
+	 *         {@link #NO_ADAPTIVE_CONCURRENCY} if adaptive concurrency is disabled
+	 * @see #setAdaptiveConcurrency(int)
+	 */
+	public int getAdaptiveConcurrency() {
+		AdaptiveConcurrencyLimit limit = this.concurrencyLimit;
+		return limit != null ? limit.getMaxLimit() : NO_ADAPTIVE_CONCURRENCY;
+	}
+
+	/**
+	 * @return the number of tasks that may currently be in flight at the same
+	 *         time, which is the current adaptive concurrency limit if adaptive
+	 *         concurrency is enabled or the parallelism of the thread pool
+	 *         otherwise
+	 * @see #setAdaptiveConcurrency(int)
+	 */
+	public int getConcurrencyLimit() {
+		AdaptiveConcurrencyLimit limit = this.concurrencyLimit;
+		return limit != null ? limit.getLimit() : this.parallelism;
+	}
+
+	/**
+	 * Limits the rate at which tasks are started to the rate of the specified
+	 * {@link TokenBucket}, e.g. to make full use of a downstream service's quota
+	 * of requests per second without exceeding it. Each task reserves a token
+	 * when it is submitted and is handed to the thread pool once its token is
+	 * due, by a timer thread shared by all rate limited executors. Neither pool
+	 * threads nor the calling thread are parked while waiting for tokens, a
+	 * participating calling thread only runs tasks whose tokens are due.
+	 * <p>
+	 * Since every task takes a token, lists, arrays and ranges are not split into
+	 * partitions while a rate limit is set, see {@link #setPartitions(int)}. The
+	 * number of tasks waiting for their tokens is only limited by the streaming
+	 * window, so large inputs should be passed as an {@link Iterator} with a
+	 * streaming window set (see {@link #setStreamingWindow(int)}). The time
+	 * tasks wait for their tokens counts as queue wait time in the
+	 * {@link #getMetrics() metrics}.
+	 * <p>
+	 * The same bucket can be used for several executors, which then share the
+	 * rate. For separate rate limits per key, use a {@link RateLimitedExecutor}.
+	 *
+	 * @param rateLimit
+	 *            the rate limit or {@code null} to start tasks right away
+	 */
+	public void setRateLimit(TokenBucket rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	/**
+	 * @return the rate limit or {@code null} if tasks are started right away
+	 * @see #setRateLimit(TokenBucket)
+	 */
+	public TokenBucket getRateLimit() {
+		return this.rateLimit;
+	}
+
+	/**
+	 * Sets the policy for retrying tasks that throw an exception. A failed task is
+	 * handed to the thread pool again once its backoff has passed, by a timer
+	 * thread, so no thread waits in the meantime and only the failed tasks are run
+	 * again, not the whole call. For lists and arrays that are split into
+	 * partitions, each failed element is retried on its own. A call returns once
+	 * each of its tasks has either succeeded or failed for good, i.e. with an
+	 * exception that is not to be retried or in its last attempt. Only then is
+	 * the exception handled as described in {@link #setFailFast(boolean)}, and
+	 * only then does the task count as done for the {@link ProgressMonitor}.
+	 * <p>
+	 * Once a call has been aborted in fail-fast mode, its tasks are no longer
+	 * retried. Retries take tokens of the rate limit like any other task, if one is
+	 * set (see {@link #setRateLimit(TokenBucket)}), but only once their backoff
+	 * has passed, so tasks submitted in the meantime are not held back by them.
+	 * Calls with a deadline or
+	 * timeout report failures as they are and never retry tasks.
+	 *
+	 * @param retryPolicy
+	 *            the retry policy or {@code null} to never retry tasks
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * @return the retry policy or {@code null} if tasks are never retried
+	 * @see #setRetryPolicy(RetryPolicy)
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	private void concurrencyLimitChanged(int limit) {
+		ProgressReporter reporter = this.progressReporter;
+		if (reporter != null) {
+			reporter.updateConcurrencyLimit(limit);
+		}
+	}
+
+	/**
+	 * Enables or disables metrics. While enabled, the executor records the number
+	 * of submitted, active, completed, failed and rejected tasks, the throughput
+	 * and histograms of the time tasks wait in the pool's queue and the time they
+	 * take to run. The metrics are registered as an {@link ExecutorMetricsMXBean}
+	 * with the platform MBean server, named after the executor's threads, so the
+	 * size of the pool can be tuned based on actual data.
+	 * <p>
+	 * Metrics are disabled by default. If the system property
+	 * {@code net.bbmsoft.bbm.utils.concurrent.metrics} is set to {@code true},
+	 * they are enabled by default for executors whose threads are named, i.e. that
+	 * have been created with a name or a {@link CustomThreadFactory}. Disabled
+	 * metrics cost nothing. The MBean is unregistered when the executor is shut
+	 * down. It does not keep the executor from being garbage collected, an
+	 * executor that is collected without having been shut down is unregistered
+	 * the next time metrics are enabled for any executor.
+	 *
+	 * @param enabled
+	 *            {@code true} to enable metrics, {@code false} to disable them
+	 */
+	public synchronized void setMetricsEnabled(boolean enabled) {
+
+		if (enabled == (this.metrics != null)) {
+			return;
+		}
+
+		if (enabled) {
+			String name = nameOf(this.threadPool);
+			ExecutorMetrics metrics = new ExecutorMetrics(name != null ? name : "unnamed", this, this.threadPool);
+			metrics.register();
+			this.metrics = metrics;
+		} else {
+			this.metrics.unregister();
+			this.metrics = null;
+		}
+	}
+
+	/**
+	 * @return the metrics of this executor or {@code null} if metrics are disabled
+	 * @see #setMetricsEnabled(boolean)
+	 */
+	public ExecutorMetricsMXBean getMetrics() {
+		return this.metrics;
+	}
+
+	private void unregisterMetrics() {
+		ExecutorMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.unregister();
+		}
+	}
+
+	// a call made from within a task always lets the calling thread participate,
+	// otherwise nested calls could block every pool thread and deadlock the pool
+	private Batch newBatch(FailurePolicy policy) {
+		FailurePolicy actualPolicy = this.failFast ? FailurePolicy.FAIL_FAST : policy;
+		return limited(new Batch(actualPolicy, this.callerRuns || Batch.isInTask()));
+	}
+
+	// nested calls are not limited, their tasks could otherwise wait for permits
+	// held by the tasks of the outer call forever
+	private Batch limited(Batch batch) {
+
+		AdaptiveConcurrencyLimit limit = this.concurrencyLimit;
+
+		if (limit != null && !Batch.isInTask()) {
+			batch.limit(limit);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Initiates an orderly shutdown of this executor's thread pool. Calls that
+	 * are already running complete normally, new calls are rejected with a
+	 * {@link RejectedExecutionException}. If this executor is registered in
+	 * {@link SharedExecutors}, it is removed from there. Batched runnables are no
+	 * longer flushed automatically, pending flushes are cancelled.
+	 */
+	public void shutdown() {
+		SharedExecutors.unregister(this);
+		unregisterMetrics();
+		stopFlushing();
+		this.threadPool.shutdown();
+	}
+
+	/**
+	 * Shuts down this executor's thread pool, interrupting all running tasks.
+	 * Tasks that have not been started yet are dropped and calls waiting for them
+	 * are completed with a {@link RejectedExecutionException}, which is thrown in
+	 * the calling thread in fail-fast mode and for
+	 * {@link #mapParallel(Collection, Function)} and
+	 * {@link #reduceParallel(Collection, Object, BiFunction, BinaryOperator)} and
+	 * passed to the uncaught exception handler otherwise. If this executor is
+	 * registered in {@link SharedExecutors}, it is removed from there. Batched
+	 * runnables are no longer flushed automatically, pending flushes are
+	 * cancelled.
+	 */
+	public void shutdownNow() {
+		SharedExecutors.unregister(this);
+		unregisterMetrics();
+		stopFlushing();
+		for (Runnable dropped : this.threadPool.shutdownNow()) {
+			if (dropped instanceof Batch.Task) {
+				((Batch.Task) dropped).discard();
+			}
+		}
+	}
+
+	/**
+	 * Starts all core threads of this executor's thread pool that are not running
+	 * yet, so that subsequent calls do not have to wait for threads to be
+	 * created. This has no effect if the thread pool is not a
+	 * {@link ThreadPoolExecutor}.
+	 *
+	 * @return the number of threads started
+	 */
+	public int prestartThreads() {
+
+		if (this.threadPool instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor) this.threadPool).prestartAllCoreThreads();
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Blocks until this executor's thread pool has terminated after a shutdown,
+	 * the timeout occurs or the current thread is interrupted, whichever happens
+	 * first.
+	 *
+	 * @return {@code true} if the thread pool has terminated, {@code false} if the
+	 *         timeout elapsed before termination
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.threadPool.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * @return {@code true} if this executor has been shut down, {@code false}
+	 *         otherwise
+	 */
+	public boolean isShutdown() {
+		return this.threadPool.isShutdown();
+	}
+
+	/**
+	 * @return {@code true} if this executor has been shut down and all of its
+	 *         tasks have completed, {@code false} otherwise
+	 */
+	public boolean isTerminated() {
+		return this.threadPool.isTerminated();
+	}
+
+	/**
+	 * Shuts this executor down gracefully (see {@link #shutdown()}) and waits for
+	 * all running tasks to complete. If the current thread is interrupted while
+	 * waiting, the executor is shut down forcefully (see {@link #shutdownNow()})
+	 * and the interrupt status is restored.
+	 */
+	@Override
+	public void close() {
+
+		shutdown();
+
+		boolean interrupted = false;
+
+		while (!isTerminated()) {
+			try {
+				awaitTermination(1, TimeUnit.DAYS);
+			} catch (InterruptedException e) {
+				if (!interrupted) {
+					shutdownNow();
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void submit(Batch batch, Runnable task) {
+		submit(batch, task, null);
+	}
+
+	/**
+	 * @param progress
+	 *            the progress to report the task's completion to once it has
+	 *            succeeded or failed for good, may be {@code null}
+	 */
+	private void submit(Batch batch, Runnable task, Progress progress) {
+
+		RetryPolicy retryPolicy = this.retryPolicy;
+		Runnable attempt = retryPolicy != null ? attempt(batch, task, progress, retryPolicy, 1)
+				: timed(withProgress(progress, task));
+
+		dispatch(batch, attempt);
+	}
+
+	// records the metrics of the task, if enabled, counting it as submitted now
+	private Runnable timed(Runnable task) {
+
+		ExecutorMetrics metrics = this.metrics;
+
+		if (metrics == null) {
+			return task;
+		}
+
+		long submitted = metrics.submitted();
+
+		return () -> metrics.run(submitted, task);
+	}
+
+	private Runnable attempt(Batch batch, Runnable task, Progress progress, RetryPolicy retryPolicy, int attempt) {
+
+		Runnable timed = timed(task);
+
+		return () -> {
+			try {
+				timed.run();
+			} catch (RuntimeException | Error e) {
+				if (retry(batch, task, progress, retryPolicy, attempt, e)) {
+					return;
+				}
+				completed(progress);
+				throw e;
+			}
+			completed(progress);
+		};
+	}
+
+	/**
+	 * Schedules another attempt of a failed task if the retry policy allows. No
+	 * thread waits for the backoff to pass, the attempt is handed to the thread
+	 * pool once it is due. Must be called by the failed attempt.
+	 *
+	 * @return {@code true} if the task is going to be retried, {@code false} if
+	 *         the exception must be handled as usual
+	 */
+	private boolean retry(Batch batch, Runnable task, Progress progress, RetryPolicy retryPolicy, int attempt,
+			Throwable e) {
+
+		if (batch.isCancelled() || !retryPolicy.shouldRetry(e, attempt)) {
+			return false;
+		}
+
+		long time = System.nanoTime() + retryPolicy.backoff(attempt);
+		Batch.Task retry = batch.submitRetry(attempt(batch, task, progress, retryPolicy, attempt + 1));
+
+		TokenBucket rateLimit = this.rateLimit;
+
+		if (rateLimit == null) {
+			dispatchAt(retry, time);
+			return true;
+		}
+
+		// the token is only reserved once the backoff has passed, reserving it in
+		// advance would hold back all tasks submitted in the meantime
+		RateLimitedExecutor.executeAt(time, Runnable::run,
+				() -> dispatchAt(retry, rateLimit.reserve(System.nanoTime())));
+
+		return true;
+	}
+
+	private void dispatch(Batch batch, Runnable task) {
+
+		TokenBucket rateLimit = this.rateLimit;
+
+		if (rateLimit == null) {
+			execute(batch.submit(task));
+			return;
+		}
+
+		long now = System.nanoTime();
+		dispatchAt(batch.submitDeferred(task), rateLimit.reserve(now));
+	}
+
+	// a pool with a bounded queue rejects tasks while it is saturated, in which
+	// case a calling thread that is going to wait anyway runs the task itself,
+	// which throttles it to the pool's pace, just like
+	// ThreadPoolExecutor.CallerRunsPolicy; asynchronous calls must not block the
+	// calling thread, so they fail with the rejection policy's exception instead
+	private void execute(Batch.Task task) {
+		try {
+			this.threadPool.execute(task);
+		} catch (RejectedExecutionException e) {
+
+			ExecutorMetrics metrics = this.metrics;
+			if (metrics != null) {
+				metrics.rejected();
+			}
+
+			if (this.threadPool.isShutdown() || !task.isAwaited()) {
+				task.abandon();
+				throw e;
+			}
+
+			task.run();
+		}
+	}
+
+	// a deferred task that has been completed because its batch was cancelled
+	// must not be handed to the pool any more
+	private void dispatchAt(Batch.Task deferred, long time) {
+		RateLimitedExecutor.executeAt(time, Runnable::run, () -> {
+			if (deferred.release()) {
+				offer(deferred);
+			}
+		});
+	}
+
+	// runs on the shared timer thread, which must not run tasks itself, so while
+	// the pool is saturated, the task is offered again a little later; a calling
+	// thread that participates may pick the released task up in the meantime
+	private void offer(Batch.Task deferred) {
+
+		if (deferred.isClaimed()) {
+			return;
+		}
+
+		try {
+			this.threadPool.execute(deferred);
+		} catch (RejectedExecutionException e) {
+			if (this.threadPool.isShutdown()) {
+				deferred.discard();
+			} else {
+				RateLimitedExecutor.executeAt(System.nanoTime() + REOFFER_DELAY, Runnable::run, () -> offer(deferred));
+			}
+		}
+	}
+
+	// deadlines are handled in terms of System.nanoTime()
+	private static long deadlineOf(Instant deadline) {
+		return deadlineOf(Duration.between(Instant.now(), deadline));
+	}
+
+	private static long deadlineOf(Duration timeout) {
+
+		long now = System.nanoTime();
+
+		try {
+			return Math.addExact(now, Math.max(0, timeout.toNanos()));
+		} catch (ArithmeticException e) {
+			// practically infinite
+			return now + Long.MAX_VALUE / 2;
+		}
+	}
+
+	private ExecutionReport executeUntil(Collection<? extends Runnable> actions, long deadline) {
+
+		List<? extends Runnable> list = asRandomAccessList(actions);
+		Progress progress = startProgress(list.size());
+
+		try {
+			return executeUntil(list.size(), withProgress(progress, i -> list.get(i).run()), deadline);
+		} finally {
+			finishProgress(progress);
+		}
+	}
+
+	private <T> ExecutionReport forEachUntil(Collection<T> items, Consumer<? super T> consumer, long deadline) {
+		List<T> list = asRandomAccessList(items);
+		return executeUntil(list.size(), i -> consumer.accept(list.get(i)), deadline);
+	}
+
+	// the calling thread could not return on time while running a task, so it
+	// only participates if it has to, see Batch#awaitUntil(long)
+	private ExecutionReport executeUntil(int size, IntConsumer action, long deadline) {
+
+		Batch batch = new Batch(FailurePolicy.COLLECT, Batch.isInTask(), true);
+		ExecutionReport.Tracker tracker = new ExecutionReport.Tracker(size);
+		Runnable onFailure = this.failFast ? batch::cancel : null;
+		IntConsumer tracked = i -> tracker.run(i, action, onFailure);
+
+		int partitions = partitionCount(size);
+
+		// waiting for the adaptive limit must not hold up the caller past the
+		// deadline, tasks that are not admitted in time count as not started
+		AdaptiveConcurrencyLimit limit = this.concurrencyLimit;
+		if (limit != null && !Batch.isInTask()) {
+			batch.limit(limit, deadline);
+		}
+
+		if (partitions > 0) {
+			submitRange(batch, size, partitions, (partition, from, to) -> {
+				for (int i = from; i < to && !batch.isCancelled(); i++) {
+					tracked.accept(i);
+				}
+			});
+		} else {
+			for (int i = 0; i < size && !batch.isCancelled(); i++) {
+				int index = i;
+				submit(batch, () -> tracked.accept(index));
+			}
+		}
+
+		if (batch.awaitUntil(deadline)) {
+			return tracker.close();
+		}
+
+		ExecutionReport report = tracker.close();
+		batch.cancel();
+		return report;
+	}
+
+	// the calling thread does not wait, so it can neither participate nor wait
+	// for permits of the adaptive limit
+	private CompletableFuture<Void> forEachAsync(int size, IntConsumer action, Progress progress) {
+
+		Batch batch = new Batch(this.failFast ? FailurePolicy.FAIL_FAST : FailurePolicy.REPORT, false);
+		batch.detach();
+		int partitions = partitionCount(size);
+
+		if (partitions > 0) {
+			submitRange(batch, size, partitions, elementwise(batch, action, progress));
+		} else {
+			for (int i = 0; i < size; i++) {
+				int index = i;
+				submit(batch, () -> action.accept(index), progress);
+			}
+		}
+
+		return batch.completion();
+	}
+
+	private static <T> List<T> asRandomAccessList(Collection<T> items) {
+		return items instanceof List && items instanceof RandomAccess ? (List<T>) items : new ArrayList<>(items);
+	}
+
+	// returns null if no progress is reported
+	private Progress startProgress(long total) {
+		ProgressReporter reporter = this.progressReporter;
+		return reporter != null ? reporter.start(total) : null;
+	}
+
+	private static void finishProgress(Progress progress) {
+		if (progress != null) {
+			progress.finish();
+		}
+	}
+
+	private static IntConsumer withProgress(Progress progress, IntConsumer action) {
+
+		if (progress == null) {
+			return action;
+		}
+
+		return i -> {
+			try {
+				action.accept(i);
+			} finally {
+				progress.completed();
+			}
+		};
+	}
+
+	private static Runnable withProgress(Progress progress, Runnable action) {
+
+		if (progress == null) {
+			return action;
+		}
+
+		return () -> {
+			try {
+				action.run();
+			} finally {
+				progress.completed();
+			}
+		};
+	}
+
+	private static void completed(Progress progress) {
+		if (progress != null) {
+			progress.completed();
+		}
+	}
+
+	private void executeStreaming(Iterator<? extends Runnable> actions, int window) {
+
+		Batch batch = newBatch(FailurePolicy.REPORT);
+		Progress progress = startProgress(-1);
+		int submitted = 0;
+
+		batch.limit(window);
+
+		try {
+
+			while (!batch.isCancelled() && actions.hasNext()) {
+
+				batch.acquireSlot();
+
+				Runnable a = actions.next();
+
+				submitted++;
+
+				submit(batch, a, progress);
+			}
+
+		} catch (InterruptedException e) {
+			// let the batch decide how to deal with the interruption
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException | Error e) {
+			// the iterator failed, so the batch can never be completed
+			batch.cancel();
+			finishProgress(progress);
+			throw e;
+		}
+
+		if (progress != null && !batch.isCancelled()) {
+			progress.setTotal(submitted);
+		}
+
+		try {
+			batch.await();
+		} finally {
+			finishProgress(progress);
+		}
+	}
+
+	private int partitionCount(Collection<?> items) {
+
+		if (!(items instanceof List) || !(items instanceof RandomAccess)) {
+			return 0;
+		}
+
+		return partitionCount(items.size());
+	}
+
+	private int partitionCount(int size) {
+
+		int partitions = this.partitions;
+
+		if (partitions == NO_PARTITIONING || this.rateLimit != null) {
+			return 0;
+		}
+
+		if (partitions == AUTO_PARTITIONING || partitions == DYNAMIC_PARTITIONING) {
+			partitions = this.parallelism * PARTITIONS_PER_THREAD;
+		}
+
+		return Math.min(partitions, size);
+	}
+
+	// every value takes a token of its own if a rate limit is set
+	private int rangePartitionCount(long size) {
+		if (this.rateLimit != null) {
+			return (int) Math.min(Integer.MAX_VALUE, size);
+		}
+		int partitions = this.partitions > 0 ? this.partitions : this.parallelism * PARTITIONS_PER_THREAD;
+		return (int) Math.min(partitions, size);
+	}
+
+	// start of the specified partition of a range of the specified size, exact
+	// even for sizes whose product with the partition index overflows a long
+	private static long partitionBound(long size, int partition, int partitions) {
+		return size / partitions * partition + size % partitions * partition / partitions;
+	}
+
+	private <T> void forEachIndexed(Batch batch, Collection<T> items, ObjIntConsumer<? super T> consumer) {
+
+		int partitions = partitionCount(items);
+
+		if (partitions > 0) {
+			List<T> list = (List<T>) items;
+			forEachPartitioned(batch, list.size(), partitions, i -> consumer.accept(list.get(i), i));
+			return;
+		}
+
+		int counter = 0;
+		for (T item : items) {
+			final int i = counter++;
+			submit(batch, () -> consumer.accept(item, i));
+		}
+
+		batch.await();
+	}
+
+	private void forEachPartitioned(Batch batch, int size, int partitions, IntConsumer action) {
+		forEachPartitioned(batch, size, partitions, action, null);
+	}
+
+	private void forEachPartitioned(Batch batch, int size, int partitions, IntConsumer action, Progress progress) {
+		submitRange(batch, size, partitions, elementwise(batch, action, progress));
+		batch.await();
+	}
+
+	// an exception thrown by one element must not prevent the remaining elements
+	// of the same partition from being processed, unless the batch is cancelled;
+	// a failed element is retried on its own, not as part of the partition
+	private PartitionTask elementwise(Batch batch, IntConsumer action, Progress progress) {
+
+		RetryPolicy retryPolicy = this.retryPolicy;
+
+		return (partition, from, to) -> {
+			for (int i = from; i < to && !batch.isCancelled(); i++) {
+				try {
+					action.accept(i);
+					completed(progress);
+				} catch (RuntimeException | Error e) {
+					int index = i;
+					elementFailed(batch, () -> action.accept(index), progress, retryPolicy, e);
+				}
+			}
+		};
+	}
+
+	private void elementFailed(Batch batch, Runnable element, Progress progress, RetryPolicy retryPolicy,
+			Throwable e) {
+		if (retryPolicy == null || !retry(batch, element, progress, retryPolicy, 1, e)) {
+			completed(progress);
+			batch.fail(e);
+		}
+	}
+
+	private void forEachPartition(Batch batch, int size, int partitions, PartitionTask task) {
+		submitPartitions(batch, size, partitions, task);
+		batch.await();
+	}
+
+	private void submitPartitions(Batch batch, int size, int partitions, PartitionTask task) {
+		for (int p = 0; p < partitions; p++) {
+			// spread the remainder over the first partitions so that partition
+			// sizes differ by at most one
+			int partition = p;
+			int from = (int) ((long) size * p / partitions);
+			int to = (int) ((long) size * (p + 1) / partitions);
+			submit(batch, () -> task.run(partition, from, to));
+		}
+	}
+
+	// partitions in dynamic mode are claimed by one task per thread at most
+	private void submitRange(Batch batch, int size, int partitions, PartitionTask task) {
+
+		if (this.partitions != DYNAMIC_PARTITIONING) {
+			submitPartitions(batch, size, partitions, task);
+			return;
+		}
+
+		int workers = Math.min(partitions, this.parallelism);
+		IndexCursor cursor = new IndexCursor(batch, size, workers, task);
+
+		for (int w = 0; w < workers; w++) {
+			submit(batch, cursor);
+		}
+	}
+
+	private boolean isPulling() {
+		return this.partitions == DYNAMIC_PARTITIONING && this.rateLimit == null;
+	}
+
+	private <T> void forEachPulled(Batch batch, Iterator<T> items, Consumer<? super T> consumer, Progress progress) {
+
+		IteratorCursor<T> cursor = new IteratorCursor<>(batch, items, consumer, progress);
+
+		for (int w = 0; w < this.parallelism; w++) {
+			submit(batch, cursor);
+		}
+
+		batch.await();
+		cursor.rethrow();
+	}
+
+	@FunctionalInterface
+	private interface PartitionTask {
+
+		public void run(int partition, int from, int to);
+	}
+
+	/**
+	 * Shared by the tasks of a call in {@link #DYNAMIC_PARTITIONING} mode, each of
+	 * which claims chunks of the range until it is exhausted. A chunk is a fixed
+	 * share of the elements left, so chunks get smaller towards the end and no
+	 * thread is left with a large chunk while the others are done.
+	 */
+	private static final class IndexCursor implements Runnable {
+
+		private final Batch batch;
+		private final int size;
+		private final int grain;
+		private final PartitionTask task;
+		private final AtomicInteger next;
+
+		public IndexCursor(Batch batch, int size, int workers, PartitionTask task) {
+			this.batch = batch;
+			this.size = size;
+			this.grain = workers * PARTITIONS_PER_THREAD;
+			this.task = task;
+			this.next = new AtomicInteger();
+		}
+
+		@Override
+		public void run() {
+
+			int from;
+
+			while (!this.batch.isCancelled() && (from = this.next.get()) < this.size) {
+				int to = from + Math.max(1, (this.size - from) / this.grain);
+				if (this.next.compareAndSet(from, to)) {
+					this.task.run(0, from, to);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Shared by the tasks of a call in {@link #DYNAMIC_PARTITIONING} mode, each of
+	 * which retrieves one element at a time from the iterator until it is
+	 * exhausted. If the iterator throws an exception, the call is cancelled and
+	 * the exception rethrown in the calling thread.
+	 */
+	private final class IteratorCursor<T> implements Runnable {
+
+		private final Batch batch;
+		private final Iterator<T> items;
+		private final Consumer<? super T> consumer;
+		private final Progress progress;
+		private final RetryPolicy retryPolicy;
+
+		// guarded by this
+		private long retrieved;
+		private boolean exhausted;
+		private Throwable failure;
+
+		public IteratorCursor(Batch batch, Iterator<T> items, Consumer<? super T> consumer, Progress progress) {
+			this.batch = batch;
+			this.items = items;
+			this.consumer = consumer;
+			this.progress = progress;
+			this.retryPolicy = ParallelSynchronousExecutor.this.retryPolicy;
+		}
+
+		@Override
+		public void run() {
+
+			while (!this.batch.isCancelled()) {
+
+				T item;
+
+				synchronized (this) {
+
+					if (this.exhausted) {
+						return;
+					}
+
+					try {
+						if (!this.items.hasNext()) {
+							exhausted();
+							return;
+						}
+						item = this.items.next();
+						this.retrieved++;
+					} catch (RuntimeException | Error e) {
+						this.exhausted = true;
+						this.failure = e;
+						this.batch.cancel();
+						return;
+					}
+				}
+
+				try {
+					this.consumer.accept(item);
+					completed(this.progress);
+				} catch (RuntimeException | Error e) {
+					elementFailed(this.batch, () -> this.consumer.accept(item), this.progress, this.retryPolicy, e);
+				}
+			}
+		}
+
+		private void exhausted() {
+			this.exhausted = true;
+			if (this.progress != null) {
+				this.progress.setTotal(this.retrieved);
+			}
+		}
+
+		public synchronized void rethrow() {
+
+			if (this.failure instanceof RuntimeException) {
+				throw (RuntimeException) this.failure;
+			}
+
+			if (this.failure instanceof Error) {
+				throw (Error) this.failure;
+			}
+		}
 	}
 }
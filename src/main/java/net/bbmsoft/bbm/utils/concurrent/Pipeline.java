@@ -0,0 +1,460 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Processes items in a chain of stages, each with its own parallelism, so that
+ * items flow through all stages at the same time. Unlike running
+ * {@link ParallelExecutor#forEachParallel(Iterable, Consumer)} once per stage,
+ * there is no barrier between the stages: an I/O bound stage can e.g. already
+ * write the first results while a CPU bound stage is still transforming later
+ * items and no intermediate results need to be kept around.
+ * <p>
+ * Stages are connected by bounded queues. A stage only starts processing an
+ * item once there is room for its result in the next stage's queue, so a slow
+ * stage holds up the stages before it instead of results piling up in memory.
+ * The input is only consumed as fast as the first stage accepts items. This
+ * way, the number of items in the pipeline never exceeds the sum of the queue
+ * capacities and the stages' parallelism, no matter the size of the input.
+ * <p>
+ * No thread ever waits for room in a queue, a stage just does not take new
+ * items while the next one is full. So the executor does not need a thread for
+ * every worker of every stage, any executor works, even one with fewer threads
+ * than there are stages. Only the calling thread waits, while feeding the
+ * first stage and for the pipeline to be drained.
+ * <p>
+ * Stages are built via {@link #builder(Executor)}. A stage function may return
+ * {@code null} to drop an item. Items may overtake each other, so the order in
+ * which they reach the last stage is undefined. If any stage throws an
+ * exception, the pipeline is aborted: items that have not reached a stage yet
+ * are dropped, the input is no longer consumed and a
+ * {@link ParallelExecutionException} is thrown once running stages have
+ * completed. A pipeline can be run any number of times, also concurrently.
+ *
+ * @author Michael Bachmann
+ *
+ * @param <I>
+ *            the type of the pipeline's input
+ */
+public class Pipeline<I> {
+
+	// queue capacity per unit of parallelism if no capacity is specified
+	private static final int DEFAULT_CAPACITY_PER_WORKER = 2;
+
+	private final Executor executor;
+	private final List<Stage> stages;
+
+	private Pipeline(Executor executor, List<Stage> stages) {
+		this.executor = executor;
+		this.stages = stages;
+	}
+
+	/**
+	 * Starts building a pipeline that runs its stages on the specified
+	 * {@link Executor}.
+	 */
+	public static <I> Builder<I, I> builder(Executor executor) {
+		return new Builder<>(executor, Collections.emptyList());
+	}
+
+	/**
+	 * Runs all items through the pipeline. The method returns once every item has
+	 * either passed all stages or been dropped.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if any stage threw an exception or the calling thread was
+	 *             interrupted
+	 */
+	public void run(Iterable<? extends I> items) {
+		run(items.iterator());
+	}
+
+	/**
+	 * Runs all items through the pipeline. Items are only retrieved from the
+	 * iterator when there is room for them in the first stage's queue. The method
+	 * returns once every item has either passed all stages or been dropped.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if any stage threw an exception or the calling thread was
+	 *             interrupted
+	 */
+	public void run(Iterator<? extends I> items) {
+		new Run().run(items);
+	}
+
+	/**
+	 * Builds a {@link Pipeline} stage by stage.
+	 *
+	 * @param <I>
+	 *            the type of the pipeline's input
+	 * @param <T>
+	 *            the type of the last stage's output
+	 */
+	public static class Builder<I, T> {
+
+		private final Executor executor;
+		private final List<Stage> stages;
+
+		private Builder(Executor executor, List<Stage> stages) {
+			this.executor = executor;
+			this.stages = stages;
+		}
+
+		/**
+		 * Adds a stage that applies the specified {@link Function} to each item,
+		 * with a queue of twice its parallelism.
+		 *
+		 * @param parallelism
+		 *            the maximum number of items the stage processes at the same time
+		 * @throws IllegalArgumentException
+		 *             if {@code parallelism} is not positive
+		 */
+		public <R> Builder<I, R> map(Function<? super T, ? extends R> function, int parallelism) {
+			return map(function, parallelism, parallelism * DEFAULT_CAPACITY_PER_WORKER);
+		}
+
+		/**
+		 * Adds a stage that applies the specified {@link Function} to each item.
+		 *
+		 * @param parallelism
+		 *            the maximum number of items the stage processes at the same time
+		 * @param capacity
+		 *            the maximum number of items waiting for the stage
+		 * @throws IllegalArgumentException
+		 *             if {@code parallelism} or {@code capacity} is not positive
+		 */
+		@SuppressWarnings("unchecked")
+		public <R> Builder<I, R> map(Function<? super T, ? extends R> function, int parallelism, int capacity) {
+			List<Stage> stages = new ArrayList<>(this.stages);
+			stages.add(new Stage((Function<Object, Object>) function, parallelism, capacity));
+			return new Builder<>(this.executor, stages);
+		}
+
+		/**
+		 * Adds a last stage that passes each item to the specified {@link Consumer},
+		 * with a queue of twice its parallelism, and builds the pipeline.
+		 *
+		 * @param parallelism
+		 *            the maximum number of items the stage processes at the same time
+		 * @throws IllegalArgumentException
+		 *             if {@code parallelism} is not positive
+		 */
+		public Pipeline<I> forEach(Consumer<? super T> consumer, int parallelism) {
+			return forEach(consumer, parallelism, parallelism * DEFAULT_CAPACITY_PER_WORKER);
+		}
+
+		/**
+		 * Adds a last stage that passes each item to the specified {@link Consumer}
+		 * and builds the pipeline.
+		 *
+		 * @param parallelism
+		 *            the maximum number of items the stage processes at the same time
+		 * @param capacity
+		 *            the maximum number of items waiting for the stage
+		 * @throws IllegalArgumentException
+		 *             if {@code parallelism} or {@code capacity} is not positive
+		 */
+		public Pipeline<I> forEach(Consumer<? super T> consumer, int parallelism, int capacity) {
+			Builder<I, Void> builder = map(item -> {
+				consumer.accept(item);
+				return null;
+			}, parallelism, capacity);
+			return new Pipeline<>(this.executor, Collections.unmodifiableList(builder.stages));
+		}
+	}
+
+	private static class Stage {
+
+		private final Function<Object, Object> function;
+		private final int parallelism;
+		private final int capacity;
+
+		public Stage(Function<Object, Object> function, int parallelism, int capacity) {
+
+			if (parallelism < 1) {
+				throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+			}
+
+			if (capacity < 1) {
+				throw new IllegalArgumentException("Invalid capacity: " + capacity);
+			}
+
+			this.function = function;
+			this.parallelism = parallelism;
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * A single run of the pipeline.
+	 */
+	private class Run {
+
+		private final List<StageRun> stages;
+		private final TaskFailures failures;
+
+		// the calling thread holds one registration until the input is exhausted
+		private final AtomicLong pending;
+		private final CountDownLatch done;
+
+		private volatile boolean cancelled;
+
+		public Run() {
+
+			this.stages = new ArrayList<>(Pipeline.this.stages.size());
+			this.failures = new TaskFailures();
+			this.pending = new AtomicLong(1);
+			this.done = new CountDownLatch(1);
+
+			StageRun previous = null;
+
+			for (Stage stage : Pipeline.this.stages) {
+				StageRun current = new StageRun(stage, previous);
+				if (previous != null) {
+					previous.next = current;
+				}
+				this.stages.add(current);
+				previous = current;
+			}
+		}
+
+		public void run(Iterator<? extends I> items) {
+
+			StageRun first = this.stages.get(0);
+
+			try {
+				feed(first, items);
+			} catch (InterruptedException e) {
+				abort();
+				arrive();
+				awaitUninterruptibly();
+				Thread.currentThread().interrupt();
+				throw this.failures.toException(e);
+			}
+
+			arrive();
+
+			try {
+				this.done.await();
+			} catch (InterruptedException e) {
+				abort();
+				awaitUninterruptibly();
+				Thread.currentThread().interrupt();
+				throw this.failures.toException(e);
+			}
+
+			if (this.failures.hasFailed()) {
+				throw this.failures.toException(null);
+			}
+		}
+
+		private void feed(StageRun first, Iterator<? extends I> items) throws InterruptedException {
+
+			while (!this.cancelled && items.hasNext()) {
+
+				first.room.acquire();
+
+				if (this.cancelled) {
+					first.room.release();
+					return;
+				}
+
+				I item;
+
+				try {
+					item = items.next();
+				} catch (RuntimeException | Error e) {
+					first.room.release();
+					fail(e);
+					return;
+				}
+
+				this.pending.incrementAndGet();
+				first.queue.add(item);
+				drain(first);
+			}
+		}
+
+		/**
+		 * Starts processing as many items queued for the specified stage as its
+		 * parallelism and the room in the next stage's queue allow. Any number of
+		 * threads may call this at the same time, only one of them does the work,
+		 * the others make sure it takes another look.
+		 */
+		private void drain(StageRun stage) {
+
+			if (stage.wip.getAndIncrement() != 0) {
+				return;
+			}
+
+			int missed = 1;
+
+			do {
+
+				while (true) {
+
+					if (this.cancelled) {
+						discard(stage);
+						break;
+					}
+
+					if (stage.active.get() >= stage.stage.parallelism || stage.queue.isEmpty()) {
+						break;
+					}
+
+					// the result of the item must be guaranteed room before it is started
+					if (stage.next != null && !stage.next.room.tryAcquire()) {
+						break;
+					}
+
+					Object item = stage.queue.poll();
+					stage.room.release();
+					stage.active.incrementAndGet();
+
+					start(stage, item);
+
+					if (stage.previous != null) {
+						drain(stage.previous);
+					}
+				}
+
+				missed = stage.wip.addAndGet(-missed);
+
+			} while (missed != 0);
+		}
+
+		private void start(StageRun stage, Object item) {
+			try {
+				Pipeline.this.executor.execute(() -> process(stage, item));
+			} catch (RejectedExecutionException e) {
+				fail(e);
+				finish(stage, false);
+			}
+		}
+
+		private void process(StageRun stage, Object item) {
+
+			boolean forwarded = false;
+
+			try {
+
+				if (!this.cancelled) {
+
+					Object result = stage.stage.function.apply(item);
+
+					if (stage.next != null && result != null) {
+						stage.next.queue.add(result);
+						forwarded = true;
+						drain(stage.next);
+					}
+				}
+
+			} catch (RuntimeException | Error e) {
+				fail(e);
+			} finally {
+				finish(stage, forwarded);
+			}
+		}
+
+		private void finish(StageRun stage, boolean forwarded) {
+
+			if (!forwarded) {
+				if (stage.next != null) {
+					// the room reserved for the result is not needed after all
+					stage.next.room.release();
+				}
+				arrive();
+			}
+
+			stage.active.decrementAndGet();
+			drain(stage);
+		}
+
+		// items queued for the stage are dropped and leave the pipeline
+		private void discard(StageRun stage) {
+			while (stage.queue.poll() != null) {
+				stage.room.release();
+				arrive();
+			}
+		}
+
+		private void fail(Throwable e) {
+			this.failures.add(e);
+			abort();
+		}
+
+		private void abort() {
+			this.cancelled = true;
+			for (StageRun stage : this.stages) {
+				drain(stage);
+			}
+		}
+
+		private void arrive() {
+			if (this.pending.decrementAndGet() == 0) {
+				this.done.countDown();
+			}
+		}
+
+		private void awaitUninterruptibly() {
+
+			boolean interrupted = false;
+
+			while (true) {
+				try {
+					this.done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The state of a single stage during a run.
+	 */
+	private static class StageRun {
+
+		private final Stage stage;
+		private final StageRun previous;
+		private final Queue<Object> queue;
+
+		// room left in the queue, including room reserved by the previous stage for
+		// the results of items it is processing
+		private final Semaphore room;
+
+		private final AtomicInteger active;
+
+		// number of requests to drain the stage, only the first one does the work
+		private final AtomicInteger wip;
+
+		private StageRun next;
+
+		public StageRun(Stage stage, StageRun previous) {
+			this.stage = stage;
+			this.previous = previous;
+			this.queue = new ConcurrentLinkedQueue<>();
+			this.room = new Semaphore(stage.capacity);
+			this.active = new AtomicInteger();
+			this.wip = new AtomicInteger();
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.bbmsoft.bbm.utils.concurrent.ObservableParallelExecutor.ProgressMonitor;
+
+/**
+ * Passes updates on to a {@link ProgressMonitor} at a limited rate, from a
+ * single thread that is shared by all reporters and terminates while there is
+ * nothing to report. Updates that arrive while the reporter is waiting for its next
+ * turn are coalesced: only the latest progress of each operation, the latest
+ * message and the latest concurrency limit are reported. Errors are never
+ * dropped, but reported together on the next turn.
+ * <p>
+ * Workers report completed tasks to the {@link Progress} of their operation,
+ * which only increments a striped counter, so they do not contend with each
+ * other or wait for the monitor. Once an operation has finished, it is reported
+ * as complete right away, so the monitor always ends up seeing 100%.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class ProgressReporter implements ProgressMonitor {
+
+	// created when the first update is reported
+	private static volatile ScheduledThreadPoolExecutor reporter;
+
+	private final ProgressMonitor monitor;
+
+	// whether a report has been scheduled that has not started yet
+	private final AtomicBoolean scheduled;
+
+	private final Queue<Progress> updated;
+	private final AtomicReference<double[]> progress;
+	private final AtomicReference<String> message;
+	private final AtomicReference<Integer> concurrencyLimit;
+	private final Queue<ErrorReport> errors;
+
+	private volatile long interval;
+	private volatile long lastReport;
+
+	public ProgressReporter(ProgressMonitor monitor, Duration interval) {
+		this.monitor = monitor;
+		this.scheduled = new AtomicBoolean();
+		this.updated = new ConcurrentLinkedQueue<>();
+		this.progress = new AtomicReference<>();
+		this.message = new AtomicReference<>();
+		this.concurrencyLimit = new AtomicReference<>();
+		this.errors = new ConcurrentLinkedQueue<>();
+		this.interval = interval.toNanos();
+		this.lastReport = System.nanoTime() - this.interval;
+	}
+
+	/**
+	 * Starts tracking the progress of an operation.
+	 *
+	 * @param total
+	 *            the total number of tasks or {@code -1} if it is not known yet
+	 */
+	public Progress start(long total) {
+		Progress progress = new Progress(total);
+		progress.update(true);
+		return progress;
+	}
+
+	public void setInterval(Duration interval) {
+		this.interval = interval.toNanos();
+	}
+
+	@Override
+	public void updateProgress(double done, double total) {
+		this.progress.set(new double[] { done, total });
+		requestReport(false);
+	}
+
+	@Override
+	public void updateMessage(String message) {
+		this.message.set(message);
+		requestReport(false);
+	}
+
+	@Override
+	public void onError(String message, boolean critical) {
+		this.errors.add(new ErrorReport(message, critical));
+		requestReport(critical);
+	}
+
+	@Override
+	public void updateConcurrencyLimit(int limit) {
+		this.concurrencyLimit.set(limit);
+		requestReport(false);
+	}
+
+	// the checks before the CAS keep workers from contending on the same cache
+	// line while a report is scheduled anyway, which is most of the time
+	private void requestReport(boolean immediately) {
+
+		if (immediately) {
+			reporter().execute(this::report);
+			return;
+		}
+
+		if (!this.scheduled.get() && this.scheduled.compareAndSet(false, true)) {
+			long delay = this.lastReport + this.interval - System.nanoTime();
+			reporter().schedule(this::scheduledReport, Math.max(0, delay), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void scheduledReport() {
+		this.scheduled.set(false);
+		report();
+	}
+
+	// only ever runs on the reporter thread
+	private void report() {
+
+		this.lastReport = System.nanoTime();
+
+		try {
+
+			// operations updated while reporting are left for the next report,
+			// otherwise busy operations could keep the reporter from ever stopping
+			List<Progress> updated = new ArrayList<>();
+			Progress progress;
+			while ((progress = this.updated.poll()) != null) {
+				updated.add(progress);
+			}
+
+			for (Progress p : updated) {
+				// reset before reading, so later updates are queued again
+				p.queued.set(false);
+				if (p.finished) {
+					double total = p.total < 0 ? p.done.sum() : p.total;
+					this.monitor.updateProgress(total, total);
+				} else {
+					this.monitor.updateProgress(p.done.sum(), p.total);
+				}
+			}
+
+			double[] raw = this.progress.getAndSet(null);
+			if (raw != null) {
+				this.monitor.updateProgress(raw[0], raw[1]);
+			}
+
+			String message = this.message.getAndSet(null);
+			if (message != null) {
+				this.monitor.updateMessage(message);
+			}
+
+			ErrorReport error;
+			while ((error = this.errors.poll()) != null) {
+				this.monitor.onError(error.message, error.critical);
+			}
+
+			Integer limit = this.concurrencyLimit.getAndSet(null);
+			if (limit != null) {
+				this.monitor.updateConcurrencyLimit(limit);
+			}
+
+		} catch (RuntimeException e) {
+			ParallelExecutorBase.reportUncaught(e);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor reporter() {
+
+		ScheduledThreadPoolExecutor reporter = ProgressReporter.reporter;
+
+		if (reporter == null) {
+			synchronized (ProgressReporter.class) {
+				reporter = ProgressReporter.reporter;
+				if (reporter == null) {
+					reporter = new ScheduledThreadPoolExecutor(1, new CustomThreadFactory("progress-reporter", true));
+					reporter.setKeepAliveTime(1, TimeUnit.MINUTES);
+					reporter.allowCoreThreadTimeOut(true);
+					ProgressReporter.reporter = reporter;
+				}
+			}
+		}
+
+		return reporter;
+	}
+
+	/**
+	 * The progress of a single operation.
+	 */
+	class Progress {
+
+		private final LongAdder done;
+		private final AtomicBoolean queued;
+
+		private volatile long total;
+		private volatile boolean finished;
+
+		private Progress(long total) {
+			this.done = new LongAdder();
+			this.queued = new AtomicBoolean();
+			this.total = total;
+		}
+
+		/**
+		 * Records that a task of the operation has completed.
+		 */
+		public void completed() {
+			this.done.increment();
+			if (!this.finished) {
+				update(false);
+			}
+		}
+
+		/**
+		 * Sets the total number of tasks once it is known.
+		 */
+		public void setTotal(long total) {
+			this.total = total;
+			update(false);
+		}
+
+		/**
+		 * Reports the operation as complete right away. Tasks that complete after
+		 * that, e.g. those of a cancelled operation, are no longer reported.
+		 */
+		public void finish() {
+			this.finished = true;
+			update(true);
+		}
+
+		private void update(boolean immediately) {
+			if (!this.queued.get() && this.queued.compareAndSet(false, true)) {
+				ProgressReporter.this.updated.add(this);
+			}
+			requestReport(immediately);
+		}
+	}
+
+	private static class ErrorReport {
+
+		private final String message;
+		private final boolean critical;
+
+		public ErrorReport(String message, boolean critical) {
+			this.message = message;
+			this.critical = critical;
+		}
+	}
+}
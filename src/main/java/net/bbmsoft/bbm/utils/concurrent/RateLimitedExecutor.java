@@ -0,0 +1,240 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor that passes tasks on to another {@link Executor} no faster than a
+ * {@link TokenBucket} allows. Tasks are not held back by parking a thread: each
+ * task reserves a token when it is submitted and is handed to the underlying
+ * executor by a shared timer thread once its token is due, so a quota is used
+ * up exactly, without overshooting it and without any thread waiting in the
+ * meantime.
+ * <p>
+ * In addition to the rate limit shared by all tasks, tasks can be submitted
+ * with a key to subject them to a separate rate limit for each key, e.g. to
+ * respect a quota per customer or per host. A task with a key is passed on
+ * once both its key's and the shared bucket have a token for it. It only
+ * reserves a token of the shared bucket once its key's token is due, so a key
+ * that exceeds its own rate limit does not delay the tasks of other keys.
+ * Buckets of keys that have not been used for a while are discarded.
+ * <p>
+ * Note that the rate limit applies to the moment tasks are handed to the
+ * underlying executor. If that executor queues them, they may still start in
+ * bursts, so it should have enough threads to run tasks as soon as they arrive.
+ *
+ * @author Michael Bachmann
+ *
+ * @param <K>
+ *            the type of the keys
+ */
+public class RateLimitedExecutor<K> implements Executor {
+
+	// how long a key's bucket must have been full before it is discarded
+	private static final long IDLE_KEY_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+	private static volatile ScheduledThreadPoolExecutor timer;
+
+	private final Executor executor;
+	private final TokenBucket rateLimit;
+	private final double keyRate;
+	private final int keyBurst;
+	private final ConcurrentMap<K, TokenBucket> keyRateLimits;
+	private final AtomicLong lastSweep;
+
+	/**
+	 * Creates a {@link RateLimitedExecutor} that passes tasks on to the specified
+	 * {@link Executor} at the rate allowed by the specified {@link TokenBucket},
+	 * without a separate rate limit per key.
+	 */
+	public RateLimitedExecutor(Executor executor, TokenBucket rateLimit) {
+		this(executor, rateLimit, Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a {@link RateLimitedExecutor} that passes tasks on to the specified
+	 * {@link Executor} at the rate allowed by the specified {@link TokenBucket}
+	 * and, for tasks submitted with a key, at the rate allowed by that key's
+	 * bucket.
+	 *
+	 * @param rateLimit
+	 *            the rate limit shared by all tasks or {@code null} if there is
+	 *            none
+	 * @param keyRate
+	 *            the rate of each key's bucket in permits per second
+	 * @param keyBurst
+	 *            the burst size of each key's bucket
+	 * @throws IllegalArgumentException
+	 *             if the rate or burst size is not valid for a {@link TokenBucket}
+	 */
+	public RateLimitedExecutor(Executor executor, TokenBucket rateLimit, double keyRate, int keyBurst) {
+
+		if (keyRate != Double.POSITIVE_INFINITY) {
+			// fail early rather than on the first task with a key
+			new TokenBucket(keyRate, keyBurst);
+		}
+
+		this.executor = executor;
+		this.rateLimit = rateLimit;
+		this.keyRate = keyRate;
+		this.keyBurst = keyBurst;
+		this.keyRateLimits = new ConcurrentHashMap<>();
+		this.lastSweep = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Passes the specified task on to the underlying executor as soon as the
+	 * shared rate limit allows.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the underlying executor does not accept the task right away;
+	 *             if it does not accept it later on, the exception is passed to
+	 *             the uncaught exception handler of the timer thread
+	 */
+	@Override
+	public void execute(Runnable task) {
+		long now = System.nanoTime();
+		executeAt(this.rateLimit != null ? this.rateLimit.reserve(now) : now, this.executor, task);
+	}
+
+	/**
+	 * Passes the specified task on to the underlying executor as soon as both the
+	 * shared rate limit and the rate limit of the specified key allow. If this
+	 * executor has been created without a rate limit per key, this is the same
+	 * as {@link #execute(Runnable)}.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the underlying executor does not accept the task right away;
+	 *             if it does not accept it later on, the exception is passed to
+	 *             the uncaught exception handler of the timer thread
+	 */
+	public void execute(K key, Runnable task) {
+
+		if (this.keyRate == Double.POSITIVE_INFINITY) {
+			execute(task);
+			return;
+		}
+
+		long now = System.nanoTime();
+		long time;
+
+		while (true) {
+
+			TokenBucket keyRateLimit = this.keyRateLimits.get(key);
+
+			if (keyRateLimit == null) {
+				keyRateLimit = this.keyRateLimits.computeIfAbsent(key, k -> new TokenBucket(this.keyRate, this.keyBurst));
+			}
+
+			time = keyRateLimit.reserve(now);
+
+			if (time != TokenBucket.RETIRED) {
+				break;
+			}
+
+			// the bucket has just been discarded as idle
+			this.keyRateLimits.remove(key, keyRateLimit);
+		}
+
+		sweep(now);
+
+		// the shared token is only reserved once the key's token is due, reserving
+		// it in advance would hold back the tasks of all other keys as well
+		executeAt(time, Runnable::run, () -> execute(task));
+	}
+
+	/**
+	 * @return the rate limit shared by all tasks or {@code null} if there is none
+	 */
+	public TokenBucket getRateLimit() {
+		return this.rateLimit;
+	}
+
+	/**
+	 * @return the number of keys that currently have a bucket of their own
+	 */
+	public int getKeyCount() {
+		return this.keyRateLimits.size();
+	}
+
+	/**
+	 * @return the bucket of the specified key or {@code null} if it currently has
+	 *         none
+	 */
+	TokenBucket getKeyRateLimit(K key) {
+		return this.keyRateLimits.get(key);
+	}
+
+	/**
+	 * Passes the specified task on to the specified {@link Executor} at the
+	 * specified time, using a timer thread shared by all rate limited executors,
+	 * or right away if the time has already come.
+	 *
+	 * @param time
+	 *            the time in terms of {@link System#nanoTime()}
+	 * @throws RejectedExecutionException
+	 *             if the executor does not accept the task right away; if it does
+	 *             not accept it later on, the exception is passed to the uncaught
+	 *             exception handler of the timer thread
+	 */
+	static void executeAt(long time, Executor executor, Runnable task) {
+
+		long delay = time - System.nanoTime();
+
+		if (delay <= 0) {
+			executor.execute(task);
+			return;
+		}
+
+		// the timer thread has no one to rethrow exceptions to
+		timer().schedule(() -> {
+			try {
+				executor.execute(task);
+			} catch (RuntimeException e) {
+				ParallelExecutorBase.reportUncaught(e);
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+
+	// buckets are only retired while they are full, so replacing one with a new,
+	// full bucket does not grant any extra permits
+	void sweep(long now) {
+
+		long lastSweep = this.lastSweep.get();
+
+		if (now - lastSweep < IDLE_KEY_TIMEOUT || !this.lastSweep.compareAndSet(lastSweep, now)) {
+			return;
+		}
+
+		for (Iterator<TokenBucket> it = this.keyRateLimits.values().iterator(); it.hasNext();) {
+			if (it.next().retireIfIdleSince(now - IDLE_KEY_TIMEOUT)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor timer() {
+
+		ScheduledThreadPoolExecutor timer = RateLimitedExecutor.timer;
+
+		if (timer == null) {
+			synchronized (RateLimitedExecutor.class) {
+				timer = RateLimitedExecutor.timer;
+				if (timer == null) {
+					timer = new ScheduledThreadPoolExecutor(1, new CustomThreadFactory("rate-limiter", true));
+					timer.setKeepAliveTime(1, TimeUnit.MINUTES);
+					timer.allowCoreThreadTimeOut(true);
+					RateLimitedExecutor.timer = timer;
+				}
+			}
+		}
+
+		return timer;
+	}
+}
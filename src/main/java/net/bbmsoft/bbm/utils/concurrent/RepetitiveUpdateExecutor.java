@@ -16,9 +16,11 @@ import java.util.concurrent.atomic.AtomicReference;
  * performed over and over again (e.g. in response to a certain event) while
  * actually only the result of the last task is really relevant.
  * <p>
- * Additionally, when executing a command a delay can be specified, to make sure
- * only a certain amount of tasks per second is actually executed, independent
- * of how long it takes to complete one task.
+ * Additionally, an {@link UpdatePolicy} can be set to throttle or debounce
+ * updates, to make sure only a certain amount of tasks per second is actually
+ * executed, independent of how long it takes to complete one task. Updates are
+ * held back by a timer thread shared by all executors, so the worker thread is
+ * never blocked while waiting.
  * <p>
  * This executor can either create its own worker thread or use another executor
  * to which tasks will be delegated. This is helpful when managing tasks that
@@ -42,6 +44,15 @@ public class RepetitiveUpdateExecutor implements Executor {
 	private final AtomicReference<Runnable> task;
 	private final Executor worker;
 
+	private volatile UpdatePolicy updatePolicy;
+
+	// guarded by this, only used with an update policy
+	private Runnable pending;
+	private boolean waiting;
+	private long wait;
+	private long lastUpdate;
+	private long waitingSince;
+
 	/**
 	 * Creates a new RepetitiveUpdateExecutor that uses its own worker thread in
 	 * which tasks will be executed.
@@ -71,7 +82,8 @@ public class RepetitiveUpdateExecutor implements Executor {
 	 * execution of this command has started.
 	 * <p>
 	 * Otherwise this command will be executed as soon as this
-	 * RepetitiveUpdateExecutor's worker thread is free.
+	 * RepetitiveUpdateExecutor's worker thread is free or, if an
+	 * {@link UpdatePolicy} is set, as soon as the policy allows.
 	 *
 	 * @param command
 	 *            the Runnable to be registered for execution
@@ -81,7 +93,12 @@ public class RepetitiveUpdateExecutor implements Executor {
 	 */
 	@Override
 	public void execute(Runnable command) {
-		execute(Objects.requireNonNull(command), 0);
+
+		if (this.updatePolicy == null) {
+			execute(Objects.requireNonNull(command), 0);
+		} else {
+			update(Objects.requireNonNull(command));
+		}
 	}
 
 	/**
@@ -96,7 +113,8 @@ public class RepetitiveUpdateExecutor implements Executor {
 	 * the duration of the delay, so it is not recommended to use this function, if
 	 * the worker thread is also used for tasks not related to this executor (e.g.
 	 * if the executor uses the JavaFX Application Thread as worker thread in a UI
-	 * application).
+	 * application). An {@link UpdatePolicy} limits the rate of updates without
+	 * blocking the worker thread. This function does not apply the update policy.
 	 *
 	 * @param command
 	 *            the Runnable to be registered for execution
@@ -123,4 +141,128 @@ public class RepetitiveUpdateExecutor implements Executor {
 			});
 		}
 	}
+
+	/**
+	 * Sets the policy that determines when updates passed to
+	 * {@link #execute(Runnable)} are executed. If an update is pending when the
+	 * policy is changed, it is executed according to the new policy or right away
+	 * if the policy is removed.
+	 *
+	 * @param updatePolicy
+	 *            the policy or {@code null} to execute updates as soon as the
+	 *            worker thread is free, which is the default
+	 */
+	public void setUpdatePolicy(UpdatePolicy updatePolicy) {
+
+		Runnable command;
+
+		synchronized (this) {
+
+			this.updatePolicy = updatePolicy;
+
+			if (updatePolicy != null || !this.waiting) {
+				return;
+			}
+
+			// stop the current wait, its timer will find a newer one
+			command = this.pending;
+			this.pending = null;
+			this.waiting = false;
+			this.wait++;
+		}
+
+		if (command != null) {
+			execute(command, 0);
+		}
+	}
+
+	/**
+	 * @return the policy that determines when updates are executed or
+	 *         {@code null} if there is none
+	 */
+	public UpdatePolicy getUpdatePolicy() {
+		return this.updatePolicy;
+	}
+
+	private void update(Runnable command) {
+
+		long now = System.nanoTime();
+		UpdatePolicy policy;
+		long wait;
+
+		synchronized (this) {
+
+			policy = this.updatePolicy;
+			wait = this.wait;
+
+			if (policy != null) {
+
+				this.lastUpdate = now;
+
+				if (this.waiting) {
+					this.pending = command;
+					return;
+				}
+
+				this.pending = policy.isLeading() ? null : command;
+				this.waiting = true;
+				this.waitingSince = now;
+			}
+		}
+
+		if (policy == null) {
+			// the policy has just been removed
+			execute(command, 0);
+			return;
+		}
+
+		RateLimitedExecutor.executeAt(policy.deadline(now, now), Runnable::run, () -> expire(wait));
+
+		if (policy.isLeading()) {
+			execute(command, 0);
+		}
+	}
+
+	// called by the timer thread once the specified wait might be over
+	private void expire(long wait) {
+
+		long now = System.nanoTime();
+		Runnable command;
+		long deadline;
+
+		synchronized (this) {
+
+			UpdatePolicy policy = this.updatePolicy;
+
+			if (wait != this.wait || policy == null) {
+				// the wait has been stopped when the policy was removed
+				return;
+			}
+
+			deadline = policy.deadline(this.lastUpdate, this.waitingSince);
+
+			if (deadline - now > 0) {
+				// new updates have come in, keep waiting
+				command = null;
+			} else if (this.pending != null && policy.isTrailing()) {
+				// wait once more, so the next update is not executed too early
+				command = this.pending;
+				this.pending = null;
+				this.lastUpdate = now;
+				this.waitingSince = now;
+				deadline = policy.deadline(now, now);
+			} else {
+				this.pending = null;
+				this.waiting = false;
+				this.wait++;
+				return;
+			}
+		}
+
+		RateLimitedExecutor.executeAt(deadline, Runnable::run, () -> expire(wait));
+
+		if (command != null) {
+			execute(command, 0);
+		}
+	}
 }
@@ -0,0 +1,125 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Determines whether and when a task that failed is attempted again. The
+ * backoff between two attempts starts at an initial value and doubles with
+ * every attempt, up to a maximum. Each backoff is randomized between half and
+ * all of its nominal value, so tasks that failed at the same time, e.g. because
+ * a downstream service was briefly unavailable, do not all retry at the same
+ * time again.
+ * <p>
+ * By default all {@link Exception Exceptions} are retried, but no
+ * {@link Error Errors}. Use {@link #retryIf(Predicate)} to only retry
+ * exceptions that indicate a transient problem. Policies are immutable, so the
+ * same policy can be used by any number of executors.
+ *
+ * @author Michael Bachmann
+ *
+ * @see ParallelSynchronousExecutor#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+
+	private final int maxAttempts;
+	private final Duration initialBackoff;
+	private final Duration maxBackoff;
+	private final Predicate<? super Throwable> retryable;
+
+	/**
+	 * Creates a {@link RetryPolicy} that retries all {@link Exception
+	 * Exceptions}.
+	 *
+	 * @param maxAttempts
+	 *            the maximum number of times a task is run, including the first
+	 *            attempt
+	 * @param initialBackoff
+	 *            the nominal time to wait before the second attempt
+	 * @param maxBackoff
+	 *            the maximum nominal time to wait before any attempt
+	 * @throws IllegalArgumentException
+	 *             if {@code maxAttempts} is not positive or a backoff is negative
+	 *             or if the maximum backoff is smaller than the initial one
+	 */
+	public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff) {
+		this(maxAttempts, initialBackoff, maxBackoff, e -> e instanceof Exception);
+	}
+
+	private RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff,
+			Predicate<? super Throwable> retryable) {
+
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Invalid number of attempts: " + maxAttempts);
+		}
+
+		if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0) {
+			throw new IllegalArgumentException("Invalid backoff: " + initialBackoff + " to " + maxBackoff);
+		}
+
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.retryable = retryable;
+	}
+
+	/**
+	 * Returns a policy that is identical to this one, except that it only retries
+	 * exceptions that satisfy the specified {@link Predicate}.
+	 */
+	public RetryPolicy retryIf(Predicate<? super Throwable> retryable) {
+		return new RetryPolicy(this.maxAttempts, this.initialBackoff, this.maxBackoff, retryable);
+	}
+
+	/**
+	 * @return the maximum number of times a task is run, including the first
+	 *         attempt
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	public Duration getInitialBackoff() {
+		return this.initialBackoff;
+	}
+
+	public Duration getMaxBackoff() {
+		return this.maxBackoff;
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of the attempt that failed, starting at one
+	 * @return {@code true} if the task should be attempted again,
+	 *         {@code false} if the exception should be handled as usual
+	 */
+	boolean shouldRetry(Throwable e, int attempt) {
+		return attempt < this.maxAttempts && this.retryable.test(e);
+	}
+
+	/**
+	 * @param attempt
+	 *            the number of the attempt that failed, starting at one
+	 * @return the randomized time in nanoseconds to wait before the next attempt
+	 */
+	long backoff(int attempt) {
+
+		long max = this.maxBackoff.toNanos();
+		long backoff = this.initialBackoff.toNanos();
+
+		for (int i = 1; i < attempt && backoff < max; i++) {
+			backoff = backoff > max / 2 ? max : backoff * 2;
+		}
+
+		backoff = Math.min(backoff, max);
+
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy [maxAttempts=" + this.maxAttempts + ", initialBackoff=" + this.initialBackoff
+				+ ", maxBackoff=" + this.maxBackoff + "]";
+	}
+}
@@ -0,0 +1,53 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * {@link TaskCodec} that uses Java serialization.
+ *
+ * @author Michael Bachmann
+ *
+ * @see TaskCodec#serializing()
+ */
+class SerializingCodec implements TaskCodec {
+
+	static final SerializingCodec INSTANCE = new SerializingCodec();
+
+	@Override
+	public void encode(Runnable task, DataOutput out) throws IOException {
+
+		if (!(task instanceof Serializable)) {
+			throw new NotSerializableException(task.getClass().getName());
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+			objects.writeObject(task);
+		}
+
+		out.writeInt(bytes.size());
+		out.write(bytes.toByteArray());
+	}
+
+	@Override
+	public Runnable decode(DataInput in) throws IOException {
+
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+
+		try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return (Runnable) objects.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("Invalid task", e);
+		}
+	}
+}
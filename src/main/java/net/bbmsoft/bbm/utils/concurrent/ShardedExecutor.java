@@ -0,0 +1,818 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * {@link ParallelExecutor} implementation with a fixed number of shards, by
+ * default one per processor core, each of which has a worker thread of its own
+ * and a bounded ring buffer of tasks. Unlike the single queue of a thread pool,
+ * which all of its threads contend for, the ring buffers are lock-free and each
+ * one is mostly accessed by its own worker only, so there is no central lock or
+ * counter that all submissions have to go through. This is meant for a very
+ * large number of tiny tasks, where the lock of a shared queue becomes the
+ * bottleneck.
+ * <p>
+ * Tasks submitted via {@link #submit(Runnable)} are put into the ring buffer of
+ * a shard chosen at random, those submitted via {@link #submit(Object, Runnable)}
+ * into that of the shard the key hashes to. Lists passed to the
+ * {@link ParallelExecutor} methods are split into contiguous chunks, which are
+ * spread over the shards round-robin. If the ring buffer of a shard is full,
+ * the task goes to the next shard, and if all are full, the submitting thread
+ * runs the task itself, which throttles it to the workers' pace.
+ * <p>
+ * Workers whose ring buffer runs dry steal tasks from other shards, unless
+ * stealing is disabled (see {@link #setStealing(boolean)}). Only without
+ * stealing do tasks submitted with the same key run one after the other in the
+ * order they have been submitted. Idle workers park and are woken up by the
+ * next submission to their shard, or to any busy shard if stealing is enabled.
+ * <p>
+ * Calls from within a task that wait for other tasks, e.g. nested
+ * {@link #forEachParallel(Iterable, Consumer)} calls, run the chunks of their
+ * own call that no worker has started yet, so they cannot deadlock, and then
+ * park until the chunks other threads have started are done. They do not run
+ * any other tasks, which could otherwise include the next task with the same
+ * key as the waiting one. The only exception is a task that submits a task
+ * with a key to its own shard while that shard's ring buffer is full: to make
+ * room, its worker runs the next task of the shard, regardless of its key.
+ * <p>
+ * Exceptions thrown by the consumers of a call are collected and rethrown as a
+ * {@link ParallelExecutionException} once all elements have been processed.
+ * Exceptions thrown by tasks submitted via {@link #submit(Runnable)} have no
+ * caller to go to, so they are passed to the uncaught exception handler of the
+ * thread that ran them.
+ * <p>
+ * The workers are started right away and keep running until the executor is
+ * shut down (see {@link #close()}).
+ *
+ * @author Michael Bachmann
+ *
+ */
+public class ShardedExecutor extends ParallelExecutorBase implements AutoCloseable {
+
+	/**
+	 * Default number of tasks each shard's ring buffer can hold.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	// number of chunks per shard a list is split into; more than one chunk per
+	// shard gives workers that finish early something to steal
+	private static final int CHUNKS_PER_SHARD = 4;
+
+	// number of times an idle worker looks for tasks before it parks
+	private static final int SPINS = 64;
+
+	// the shard whose worker the current thread is, if any
+	private static final ThreadLocal<Shard> CURRENT = new ThreadLocal<>();
+
+	private final Shard[] shards;
+	private final AtomicInteger idleWorkers;
+	private final CountDownLatch terminated;
+
+	private volatile boolean stealing;
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a {@link ShardedExecutor} with as many shards as the system has
+	 * processor cores, whose workers are daemon threads.
+	 */
+	public ShardedExecutor() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a {@link ShardedExecutor} with the specified number of shards, whose
+	 * workers are daemon threads.
+	 */
+	public ShardedExecutor(int shards) {
+		this(shards, "sharded-executor", true);
+	}
+
+	/**
+	 * Creates a {@link ShardedExecutor} with the specified number of shards, whose
+	 * workers are named after the specified name.
+	 */
+	public ShardedExecutor(int shards, String name, boolean daemon) {
+		this(shards, DEFAULT_CAPACITY, new CustomThreadFactory(name, daemon));
+	}
+
+	/**
+	 * Creates a {@link ShardedExecutor} with the specified number of shards.
+	 *
+	 * @param shards
+	 *            the number of shards and worker threads
+	 * @param capacity
+	 *            the number of tasks each shard's ring buffer can hold, rounded up
+	 *            to the next power of two
+	 * @param threadFactory
+	 *            the factory for the worker threads
+	 * @throws IllegalArgumentException
+	 *             if {@code shards} or {@code capacity} is not positive or the
+	 *             capacity is too large
+	 */
+	public ShardedExecutor(int shards, int capacity, ThreadFactory threadFactory) {
+
+		if (shards < 1) {
+			throw new IllegalArgumentException("Invalid number of shards: " + shards);
+		}
+
+		if (capacity < 1 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+
+		this.shards = new Shard[shards];
+		this.idleWorkers = new AtomicInteger();
+		this.terminated = new CountDownLatch(shards);
+		this.stealing = true;
+
+		int roundedCapacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+		for (int i = 0; i < shards; i++) {
+			this.shards[i] = new Shard(i, roundedCapacity);
+		}
+
+		// workers steal from each other, so all shards must exist first
+		for (Shard shard : this.shards) {
+			shard.start(threadFactory);
+		}
+	}
+
+	/**
+	 * Runs the specified task on a shard chosen at random, without waiting for it.
+	 * If the ring buffers of all shards are full, the calling thread runs the
+	 * task itself.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	public void submit(Runnable task) {
+
+		checkNotShutdown();
+
+		if (!offer(ThreadLocalRandom.current().nextInt(this.shards.length), task)) {
+			run(task);
+		}
+	}
+
+	/**
+	 * Runs the specified task on the shard the specified key hashes to, without
+	 * waiting for it. If the shard's ring buffer is full, the calling thread waits
+	 * until there is room. Unless stealing is enabled, tasks with the same key run
+	 * one after the other, in the order they have been submitted.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	public void submit(Object key, Runnable task) {
+
+		checkNotShutdown();
+
+		int hash = key.hashCode();
+		Shard shard = this.shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % this.shards.length];
+
+		while (!shard.offer(task)) {
+			// a worker makes room itself, it might be the one the shard is waiting for
+			Shard current = currentShard();
+			if (current == null || !current.runNext()) {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Iterable} in parallel. {@link RandomAccess} lists are split into
+	 * contiguous chunks as they are, other iterables are copied into a list first.
+	 * The method will return as soon as all consumer operations have successfully
+	 * completed or thrown an exception.
+	 *
+	 * @throws ParallelExecutionException
+	 *             if any consumer operation has thrown an exception, with the
+	 *             first one as its cause and all others attached as suppressed
+	 *             exceptions
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	@Override
+	public <T> void forEachParallel(Iterable<T> items, Consumer<? super T> consumer) {
+		List<T> list = asRandomAccessList(items);
+		await(start(list.size(), i -> consumer.accept(list.get(i)), new Call(null)));
+	}
+
+	@Override
+	public <T> void forEachParallel(Iterator<T> items, Consumer<? super T> consumer) {
+		List<T> list = new ArrayList<>();
+		items.forEachRemaining(list::add);
+		forEachParallel(list, consumer);
+	}
+
+	/**
+	 * Applies the specified {@link Consumer} to all elements of the specified
+	 * {@link Iterable} in parallel without blocking the calling thread. The
+	 * returned future is completed by the chunk that finishes last, exceptionally
+	 * with a {@link ParallelExecutionException} if any consumer operation has
+	 * thrown an exception.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	@Override
+	public <T> CompletableFuture<Void> forEachParallelAsync(Iterable<T> items, Consumer<? super T> consumer) {
+		List<T> list = asRandomAccessList(items);
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		start(list.size(), i -> consumer.accept(list.get(i)), new Call(completion));
+		return completion;
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel. The method will
+	 * return as soon as all runnables have either completed or thrown an exception.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @throws ParallelExecutionException
+	 *             if any runnable has thrown an exception
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	@Override
+	public void execute(Collection<? extends Runnable> actions) {
+		forEachParallel(actions, Runnable::run);
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel. The method will
+	 * return as soon as all runnables have either completed or thrown an exception.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @throws ParallelExecutionException
+	 *             if any runnable has thrown an exception
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	@Override
+	public void execute(Iterator<? extends Runnable> actions) {
+		forEachParallel(actions, Runnable::run);
+	}
+
+	/**
+	 * Executes all given {@link Runnable Runnables} in parallel without blocking
+	 * the calling thread. The returned future is completed once all runnables have
+	 * either completed or thrown an exception, exceptionally with a
+	 * {@link ParallelExecutionException} in the latter case.
+	 *
+	 * @param actions
+	 *            all the {@link Runnable Runnables} to be executed
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	@Override
+	public CompletableFuture<Void> executeAsync(Collection<? extends Runnable> actions) {
+		return forEachParallelAsync(actions, Runnable::run);
+	}
+
+	/**
+	 * Sets whether workers whose ring buffer is empty take tasks from other
+	 * shards. Stealing balances uneven workloads, but tasks submitted with the
+	 * same key may then run in parallel and out of order. Enabled by default.
+	 */
+	public void setStealing(boolean stealing) {
+		this.stealing = stealing;
+	}
+
+	/**
+	 * @return {@code true} if workers take tasks from other shards when their
+	 *         ring buffer is empty, {@code false} otherwise
+	 * @see #setStealing(boolean)
+	 */
+	public boolean isStealing() {
+		return this.stealing;
+	}
+
+	/**
+	 * @return the number of shards, which is also the number of worker threads
+	 */
+	public int getShardCount() {
+		return this.shards.length;
+	}
+
+	/**
+	 * Shuts this executor down. Tasks that have already been submitted are still
+	 * run, new tasks are rejected with a {@link RejectedExecutionException}. The
+	 * workers terminate once their ring buffers are empty. Batched runnables are
+	 * no longer flushed automatically, pending flushes are cancelled.
+	 */
+	public void shutdown() {
+
+		this.shutdown = true;
+		stopFlushing();
+
+		for (Shard shard : this.shards) {
+			LockSupport.unpark(shard.worker);
+		}
+	}
+
+	/**
+	 * Blocks until all workers have terminated after a shutdown, the timeout
+	 * occurs or the current thread is interrupted, whichever happens first.
+	 *
+	 * @return {@code true} if all workers have terminated, {@code false} if the
+	 *         timeout elapsed before termination
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.terminated.await(timeout, unit);
+	}
+
+	/**
+	 * @return {@code true} if this executor has been shut down, {@code false}
+	 *         otherwise
+	 */
+	public boolean isShutdown() {
+		return this.shutdown;
+	}
+
+	/**
+	 * @return {@code true} if this executor has been shut down and all of its
+	 *         workers have terminated, {@code false} otherwise
+	 */
+	public boolean isTerminated() {
+		return this.terminated.getCount() == 0;
+	}
+
+	/**
+	 * Shuts this executor down (see {@link #shutdown()}) and waits for all
+	 * submitted tasks to complete. If the current thread is interrupted while
+	 * waiting, it stops waiting and the interrupt status is restored.
+	 */
+	@Override
+	public void close() {
+
+		shutdown();
+
+		try {
+			this.terminated.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <T> List<T> asRandomAccessList(Iterable<T> items) {
+
+		if (items instanceof List && items instanceof RandomAccess) {
+			return (List<T>) items;
+		}
+
+		List<T> list = new ArrayList<>();
+		items.forEach(list::add);
+		return list;
+	}
+
+	private void checkNotShutdown() {
+		if (this.shutdown) {
+			throw new RejectedExecutionException("Executor has been shut down.");
+		}
+	}
+
+	// splits the indices into chunks that are spread over the shards round-robin
+	private Call start(int size, IntConsumer action, Call call) {
+
+		checkNotShutdown();
+
+		int chunks = (int) Math.min(size, (long) this.shards.length * CHUNKS_PER_SHARD);
+		int first = ThreadLocalRandom.current().nextInt(this.shards.length);
+
+		call.chunks = new Chunk[chunks];
+
+		call.register(chunks);
+
+		for (int c = 0; c < chunks; c++) {
+
+			int from = (int) ((long) size * c / chunks);
+			int to = (int) ((long) size * (c + 1) / chunks);
+
+			Chunk chunk = new Chunk(from, to, action, call);
+			call.chunks[c] = chunk;
+
+			if (!offer((first + c) % this.shards.length, chunk)) {
+				chunk.run();
+			}
+		}
+
+		call.arrive();
+
+		return call;
+	}
+
+	// workers run the call's chunks that no one has started yet before they wait,
+	// the chunks other threads have started never depend on the waiting worker
+	private void await(Call call) {
+
+		if (currentShard() != null) {
+			for (Chunk chunk : call.chunks) {
+				chunk.run();
+			}
+		}
+
+		boolean interrupted = false;
+
+		while (true) {
+			try {
+				call.done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (call.failures.hasFailed()) {
+			throw call.failures.toException(null);
+		}
+	}
+
+	// offers the task to the shards starting with the specified one
+	private boolean offer(int first, Runnable task) {
+
+		for (int i = 0; i < this.shards.length; i++) {
+			if (this.shards[(first + i) % this.shards.length].offer(task)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private Shard currentShard() {
+		Shard shard = CURRENT.get();
+		return shard != null && shard.executor() == this ? shard : null;
+	}
+
+	private static void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException | Error e) {
+			reportUncaught(e);
+		}
+	}
+
+	// wakes up an idle worker, if any, so it can steal the task
+	private void wakeIdleWorker(int busy) {
+
+		for (int i = 1; i < this.shards.length; i++) {
+			Shard shard = this.shards[(busy + i) % this.shards.length];
+			if (shard.idle) {
+				LockSupport.unpark(shard.worker);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A shard with its worker and ring buffer.
+	 */
+	private class Shard implements Runnable {
+
+		private final int index;
+		private final RingBuffer queue;
+
+		private Thread worker;
+
+		// set while the worker is parked or about to park
+		private volatile boolean idle;
+
+		// set once the worker has stopped taking tasks; a producer that still
+		// manages to add a task runs the shard's remaining tasks itself
+		private volatile boolean stopped;
+
+		public Shard(int index, int capacity) {
+			this.index = index;
+			this.queue = new RingBuffer(capacity);
+		}
+
+		public void start(ThreadFactory threadFactory) {
+			this.worker = threadFactory.newThread(this);
+			this.worker.start();
+		}
+
+		public ShardedExecutor executor() {
+			return ShardedExecutor.this;
+		}
+
+		public boolean offer(Runnable task) {
+
+			if (!this.queue.offer(task)) {
+				return false;
+			}
+
+			if (this.idle) {
+				LockSupport.unpark(this.worker);
+			} else if (ShardedExecutor.this.stealing && ShardedExecutor.this.idleWorkers.get() > 0) {
+				wakeIdleWorker(this.index);
+			}
+
+			if (this.stopped) {
+				drain();
+			}
+
+			return true;
+		}
+
+		public boolean runNext() {
+
+			Runnable task = this.queue.poll();
+
+			if (task == null) {
+				return false;
+			}
+
+			ShardedExecutor.run(task);
+			return true;
+		}
+
+		public boolean steal() {
+
+			if (!ShardedExecutor.this.stealing) {
+				return false;
+			}
+
+			Shard[] shards = ShardedExecutor.this.shards;
+
+			for (int i = 1; i < shards.length; i++) {
+				if (shards[(this.index + i) % shards.length].runNext()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public void run() {
+
+			CURRENT.set(this);
+
+			try {
+				work();
+			} finally {
+				this.stopped = true;
+				drain();
+				CURRENT.remove();
+				ShardedExecutor.this.terminated.countDown();
+			}
+		}
+
+		private void work() {
+
+			int spins = 0;
+
+			while (true) {
+
+				if (runNext() || steal()) {
+					spins = 0;
+					continue;
+				}
+
+				if (ShardedExecutor.this.shutdown) {
+					return;
+				}
+
+				if (++spins < SPINS) {
+					continue;
+				}
+
+				spins = 0;
+				park();
+			}
+		}
+
+		// the flag must be set before looking at the queue one last time, so a
+		// producer either sees it or its task is seen here
+		private void park() {
+
+			this.idle = true;
+			ShardedExecutor.this.idleWorkers.incrementAndGet();
+
+			try {
+				if (this.queue.isEmpty() && !canSteal() && !ShardedExecutor.this.shutdown) {
+					LockSupport.park(this);
+				}
+			} finally {
+				ShardedExecutor.this.idleWorkers.decrementAndGet();
+				this.idle = false;
+			}
+		}
+
+		private boolean canSteal() {
+
+			if (!ShardedExecutor.this.stealing) {
+				return false;
+			}
+
+			for (Shard shard : ShardedExecutor.this.shards) {
+				if (!shard.queue.isEmpty()) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		private void drain() {
+			while (runNext()) {
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * Bounded lock-free queue after Dmitry Vyukov's design. Every slot carries a
+	 * sequence number that tells producers and consumers whether the slot is free
+	 * or holds a task for the position they have claimed, so neither side ever
+	 * waits for the other. Producers claim positions via CAS on the tail. The
+	 * head is usually only advanced by the shard's worker, but also by workers
+	 * stealing tasks, so it is claimed via CAS as well.
+	 */
+	private static class RingBuffer {
+
+		private final int mask;
+		private final Runnable[] tasks;
+		private final AtomicLongArray sequences;
+		private final AtomicLong head;
+		private final AtomicLong tail;
+
+		public RingBuffer(int capacity) {
+
+			this.mask = capacity - 1;
+			this.tasks = new Runnable[capacity];
+			this.sequences = new AtomicLongArray(capacity);
+			this.head = new AtomicLong();
+			this.tail = new AtomicLong();
+
+			for (int i = 0; i < capacity; i++) {
+				this.sequences.set(i, i);
+			}
+		}
+
+		public boolean offer(Runnable task) {
+
+			long position = this.tail.get();
+
+			while (true) {
+
+				int slot = (int) position & this.mask;
+				long difference = this.sequences.get(slot) - position;
+
+				if (difference == 0) {
+					if (this.tail.compareAndSet(position, position + 1)) {
+						this.tasks[slot] = task;
+						this.sequences.lazySet(slot, position + 1);
+						return true;
+					}
+					position = this.tail.get();
+				} else if (difference < 0) {
+					// the slot still holds the task from one lap ago
+					return false;
+				} else {
+					position = this.tail.get();
+				}
+			}
+		}
+
+		public Runnable poll() {
+
+			long position = this.head.get();
+
+			while (true) {
+
+				int slot = (int) position & this.mask;
+				long difference = this.sequences.get(slot) - (position + 1);
+
+				if (difference == 0) {
+					if (this.head.compareAndSet(position, position + 1)) {
+						Runnable task = this.tasks[slot];
+						this.tasks[slot] = null;
+						this.sequences.lazySet(slot, position + this.mask + 1);
+						return task;
+					}
+					position = this.head.get();
+				} else if (difference < 0) {
+					// the slot has not been filled yet
+					return null;
+				} else {
+					position = this.head.get();
+				}
+			}
+		}
+
+		public boolean isEmpty() {
+			return this.head.get() >= this.tail.get();
+		}
+	}
+
+	/**
+	 * Keeps track of the chunks of a single call and the exceptions thrown by
+	 * them. The calling thread holds one registration until all chunks have been
+	 * submitted.
+	 */
+	private static class Call {
+
+		private final AtomicInteger pending;
+		private final CountDownLatch done;
+		private final CompletableFuture<Void> completion;
+		private final TaskFailures failures;
+
+		// set by the calling thread before the first chunk is submitted
+		private Chunk[] chunks;
+
+		public Call(CompletableFuture<Void> completion) {
+			this.pending = new AtomicInteger(1);
+			this.done = new CountDownLatch(1);
+			this.completion = completion;
+			this.failures = new TaskFailures();
+		}
+
+		public void register(int chunks) {
+			this.pending.addAndGet(chunks);
+		}
+
+		public void arrive() {
+			if (this.pending.decrementAndGet() == 0) {
+				this.done.countDown();
+				if (this.completion == null) {
+					return;
+				}
+				if (this.failures.hasFailed()) {
+					this.completion.completeExceptionally(this.failures.toException(null));
+				} else {
+					this.completion.complete(null);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A contiguous range of the indices of a call. Chunks are claimed atomically
+	 * by the first thread to get to them, which is either the worker of the shard
+	 * it has been submitted to, a worker stealing it or the calling thread of the
+	 * call, if that is a worker itself.
+	 */
+	private static class Chunk extends AtomicBoolean implements Runnable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final IntConsumer action;
+		private final Call call;
+
+		public Chunk(int from, int to, IntConsumer action, Call call) {
+			this.from = from;
+			this.to = to;
+			this.action = action;
+			this.call = call;
+		}
+
+		@Override
+		public void run() {
+
+			if (!compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				for (int i = this.from; i < this.to; i++) {
+					try {
+						this.action.accept(i);
+					} catch (RuntimeException | Error e) {
+						this.call.failures.add(e);
+					}
+				}
+			} finally {
+				this.call.arrive();
+			}
+		}
+	}
+}
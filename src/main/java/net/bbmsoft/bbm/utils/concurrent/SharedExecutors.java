@@ -0,0 +1,108 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Registry of named {@link ParallelSynchronousExecutor ParallelSynchronousExecutors}
+ * that can be shared between components. Instead of every component creating
+ * its own thread pool, which leads to idle threads and cores being
+ * over-subscribed, components look up an executor by name and reuse it.
+ * <p>
+ * Shared executors stay registered until they are shut down, either directly
+ * or via {@link #shutdown(String)} or {@link #shutdownAll()}. Since shared
+ * executors are used by several components at a time, components should not
+ * change their settings (like e.g. the number of partitions) unless all of
+ * them agree on those settings.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public class SharedExecutors {
+
+	private static final Map<String, ParallelSynchronousExecutor> EXECUTORS = new ConcurrentHashMap<>();
+
+	private SharedExecutors() {
+	}
+
+	/**
+	 * Returns the shared executor with the specified name, creating one with as
+	 * many daemon threads as the system has processor cores if there is none yet.
+	 * The threads are named after the executor.
+	 */
+	public static ParallelSynchronousExecutor get(String name) {
+		return get(name, () -> ParallelSynchronousExecutor.withFixedThreadPool(name, true));
+	}
+
+	/**
+	 * Returns the shared executor with the specified name, creating one using the
+	 * specified factory if there is none yet.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the executor returned by the factory is already shared under
+	 *             a different name
+	 */
+	public static ParallelSynchronousExecutor get(String name, Supplier<ParallelSynchronousExecutor> factory) {
+		return EXECUTORS.computeIfAbsent(name, n -> {
+			ParallelSynchronousExecutor executor = factory.get();
+			if (executor.sharedName != null) {
+				throw new IllegalArgumentException(
+						"Executor is already shared as '" + executor.sharedName + "', cannot share it as '" + n + "'.");
+			}
+			executor.sharedName = n;
+			return executor;
+		});
+	}
+
+	/**
+	 * @return the shared executor with the specified name or {@code null} if
+	 *         there is none
+	 */
+	public static ParallelSynchronousExecutor find(String name) {
+		return EXECUTORS.get(name);
+	}
+
+	/**
+	 * @return the names of all currently shared executors
+	 */
+	public static Set<String> getNames() {
+		return Collections.unmodifiableSet(EXECUTORS.keySet());
+	}
+
+	/**
+	 * Shuts down the shared executor with the specified name, if there is one, and
+	 * removes it from the registry. Calls that are already running complete
+	 * normally.
+	 *
+	 * @see ParallelSynchronousExecutor#shutdown()
+	 */
+	public static void shutdown(String name) {
+		ParallelSynchronousExecutor executor = EXECUTORS.get(name);
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Shuts down all shared executors and removes them from the registry. Calls
+	 * that are already running complete normally.
+	 *
+	 * @see ParallelSynchronousExecutor#shutdown()
+	 */
+	public static void shutdownAll() {
+		List<ParallelSynchronousExecutor> executors = new ArrayList<>(EXECUTORS.values());
+		executors.forEach(ParallelSynchronousExecutor::shutdown);
+	}
+
+	static void unregister(ParallelSynchronousExecutor executor) {
+		String name = executor.sharedName;
+		if (name != null) {
+			EXECUTORS.remove(name, executor);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.nio.file.Path;
+
+/**
+ * Bounds the number of batched runnables that are kept in memory (see
+ * {@link ParallelExecutorBase#batch(java.util.Collection)}). Once a batch
+ * holds the maximum number of runnables, further runnables are encoded with a
+ * {@link TaskCodec} and appended to a file in the spill directory instead. When
+ * the batch is run, the runnables in memory are run first, then the spilled
+ * ones are read back in the order they were batched, in chunks no larger than
+ * the in-memory maximum, so the heap stays bounded while the batch is run as
+ * well. The file is deleted once all of its runnables have been run.
+ * <p>
+ * This keeps producers from running out of memory during bursts that outpace
+ * the flushes of the batch, without dropping any work. Policies are immutable,
+ * so the same policy can be used by any number of executors.
+ *
+ * @author Michael Bachmann
+ *
+ * @see ParallelExecutorBase#setBatchSpillPolicy(SpillPolicy)
+ */
+public class SpillPolicy {
+
+	private final int maxInMemory;
+	private final Path directory;
+	private final TaskCodec codec;
+
+	/**
+	 * @param maxInMemory
+	 *            the maximum number of runnables of a batch that are kept in
+	 *            memory
+	 * @param directory
+	 *            the existing directory spill files are created in
+	 * @param codec
+	 *            the codec that converts spilled runnables to bytes and back
+	 * @throws IllegalArgumentException
+	 *             if {@code maxInMemory} is not positive
+	 */
+	public SpillPolicy(int maxInMemory, Path directory, TaskCodec codec) {
+
+		if (maxInMemory < 1) {
+			throw new IllegalArgumentException("Invalid maximum number of runnables in memory: " + maxInMemory);
+		}
+
+		this.maxInMemory = maxInMemory;
+		this.directory = directory;
+		this.codec = codec;
+	}
+
+	/**
+	 * @return the maximum number of runnables of a batch that are kept in memory
+	 */
+	public int getMaxInMemory() {
+		return this.maxInMemory;
+	}
+
+	/**
+	 * @return the directory spill files are created in
+	 */
+	public Path getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * @return the codec that converts spilled runnables to bytes and back
+	 */
+	public TaskCodec getCodec() {
+		return this.codec;
+	}
+
+	@Override
+	public String toString() {
+		return "SpillPolicy [maxInMemory=" + this.maxInMemory + ", directory=" + this.directory + "]";
+	}
+}
@@ -0,0 +1,146 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only file holding the runnables a batch has spilled to disk (see
+ * {@link SpillPolicy}). Runnables are appended while the batch is open and read
+ * back in the same order in chunks once it is run. Each runnable is stored as
+ * its length followed by the bytes written by the {@link TaskCodec}.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class SpillSegment {
+
+	private final Path file;
+	private final TaskCodec codec;
+	private final int chunkSize;
+
+	// guarded by this
+	private DataOutputStream out;
+	private DataInputStream in;
+	private long appended;
+	private long read;
+
+	private SpillSegment(Path file, TaskCodec codec, int chunkSize, DataOutputStream out) {
+		this.file = file;
+		this.codec = codec;
+		this.chunkSize = chunkSize;
+		this.out = out;
+	}
+
+	public static SpillSegment create(SpillPolicy policy) throws IOException {
+
+		Path file = Files.createTempFile(policy.getDirectory(), "batch-", ".spill");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+
+		return new SpillSegment(file, policy.getCodec(), policy.getMaxInMemory(), out);
+	}
+
+	/**
+	 * Appends the specified runnables. They are all encoded before anything is
+	 * written, so if one of them cannot be encoded, none of them is appended.
+	 */
+	public void append(Collection<Runnable> tasks) throws IOException {
+
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		DataOutputStream recordsOut = new DataOutputStream(records);
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream recordOut = new DataOutputStream(record);
+
+		for (Runnable task : tasks) {
+			record.reset();
+			this.codec.encode(task, recordOut);
+			recordOut.flush();
+			recordsOut.writeInt(record.size());
+			record.writeTo(recordsOut);
+		}
+
+		synchronized (this) {
+
+			if (this.out == null) {
+				throw new IOException("Spill file is no longer open for writing: " + this.file);
+			}
+
+			records.writeTo(this.out);
+			this.appended += tasks.size();
+		}
+	}
+
+	/**
+	 * Reads the next chunk of runnables. Must only be called once nothing is
+	 * appended any more.
+	 *
+	 * @return the next runnables, an empty list once all have been read
+	 */
+	public synchronized List<Runnable> read() throws IOException {
+
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)));
+		}
+
+		if (this.read == this.appended) {
+			return Collections.emptyList();
+		}
+
+		int size = (int) Math.min(this.chunkSize, this.appended - this.read);
+		List<Runnable> tasks = new ArrayList<>(size);
+		byte[] buffer = new byte[0];
+
+		for (int i = 0; i < size; i++) {
+
+			int length = this.in.readInt();
+
+			if (buffer.length < length) {
+				buffer = new byte[length];
+			}
+
+			this.in.readFully(buffer, 0, length);
+			tasks.add(this.codec.decode(new DataInputStream(new ByteArrayInputStream(buffer, 0, length))));
+			this.read++;
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * @return the number of runnables that have been appended, but not read yet
+	 */
+	public synchronized long getUnread() {
+		return this.appended - this.read;
+	}
+
+	/**
+	 * Closes and deletes the file, dropping runnables that have not been read.
+	 */
+	public synchronized void delete() throws IOException {
+
+		try {
+			if (this.out != null) {
+				this.out.close();
+				this.out = null;
+			}
+			if (this.in != null) {
+				this.in.close();
+				this.in = null;
+			}
+		} finally {
+			Files.deleteIfExists(this.file);
+		}
+	}
+}
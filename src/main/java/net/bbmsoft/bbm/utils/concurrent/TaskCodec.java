@@ -0,0 +1,48 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Converts runnables to bytes and back, so batched runnables can be spilled to
+ * disk (see {@link SpillPolicy}). Runnables that are meant to be spilled should
+ * be small descriptors of the work to be done, e.g. the id of a record to
+ * process, rather than carry the data they work on, and a codec should only
+ * write what is needed to recreate them.
+ *
+ * @author Michael Bachmann
+ *
+ */
+public interface TaskCodec {
+
+	/**
+	 * Writes the specified runnable to the specified output.
+	 *
+	 * @throws IOException
+	 *             if the runnable cannot be encoded, e.g. because it is of a type
+	 *             the codec does not know
+	 */
+	public void encode(Runnable task, DataOutput out) throws IOException;
+
+	/**
+	 * Reads a runnable written by {@link #encode(Runnable, DataOutput)} from the
+	 * specified input.
+	 *
+	 * @throws IOException
+	 *             if the runnable cannot be decoded
+	 */
+	public Runnable decode(DataInput in) throws IOException;
+
+	/**
+	 * Returns a codec that uses Java serialization, so it can encode all runnables
+	 * that implement {@link Serializable}, including lambdas cast to
+	 * {@code (Runnable & Serializable)}. This is convenient, but neither compact
+	 * nor fast, so a dedicated codec should be preferred for large amounts of
+	 * runnables.
+	 */
+	public static TaskCodec serializing() {
+		return SerializingCodec.INSTANCE;
+	}
+}
@@ -0,0 +1,115 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects the exceptions thrown by the tasks of a single parallel operation so
+ * they can be rethrown in the calling thread once the operation is complete.
+ * The first exception is rethrown, all others are attached to it as suppressed
+ * exceptions.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class TaskFailures {
+
+	private final AtomicReference<Throwable> first;
+	private final Queue<Throwable> others;
+
+	public TaskFailures() {
+		this.first = new AtomicReference<>();
+		this.others = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Records an exception thrown by a task.
+	 */
+	public void add(Throwable e) {
+		if (!this.first.compareAndSet(null, e)) {
+			this.others.add(e);
+		}
+	}
+
+	/**
+	 * Wraps the specified {@link Runnable} so that any exception it throws is
+	 * recorded instead of propagated.
+	 */
+	public Runnable guard(Runnable task) {
+		return () -> {
+			try {
+				task.run();
+			} catch (RuntimeException | Error e) {
+				add(e);
+			}
+		};
+	}
+
+	/**
+	 * @return {@code true} if any exception has been recorded so far
+	 */
+	public boolean hasFailed() {
+		return this.first.get() != null;
+	}
+
+	/**
+	 * @return the first recorded exception with all others attached as suppressed
+	 *         exceptions or {@code null} if no exception has been recorded
+	 */
+	public Throwable collect() {
+
+		Throwable e = this.first.get();
+
+		if (e != null) {
+			this.others.forEach(e::addSuppressed);
+		}
+
+		return e;
+	}
+
+	/**
+	 * Rethrows the first recorded exception, if any, with all others attached as
+	 * suppressed exceptions.
+	 */
+	public void rethrow() {
+
+		Throwable e = collect();
+
+		if (e == null) {
+			return;
+		}
+
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+
+		throw (Error) e;
+	}
+
+	/**
+	 * Creates a {@link ParallelExecutionException} with the first recorded
+	 * exception as its cause and all others attached as suppressed exceptions. If
+	 * the operation has been interrupted, the {@link InterruptedException} is used
+	 * as the cause and all recorded exceptions are suppressed.
+	 */
+	public ParallelExecutionException toException(InterruptedException interruption) {
+
+		Throwable first = this.first.get();
+
+		ParallelExecutionException e;
+
+		if (interruption != null) {
+			e = new ParallelExecutionException("Interrupted while waiting for tasks to complete.", interruption);
+			if (first != null) {
+				e.addSuppressed(first);
+			}
+		} else {
+			e = new ParallelExecutionException((1 + this.others.size()) + " task(s) failed.", first);
+		}
+
+		this.others.forEach(e::addSuppressed);
+
+		return e;
+	}
+}
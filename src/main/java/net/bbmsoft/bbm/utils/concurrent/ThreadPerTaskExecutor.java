@@ -0,0 +1,158 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Executor} that starts a new thread for every task. This is meant to be
+ * used with virtual threads, which are cheap enough to be created per task.
+ * <p>
+ * Optionally the number of tasks running at the same time can be limited. Tasks
+ * exceeding that limit still get their own thread, which then waits for a
+ * permit before running the task. Since a waiting virtual thread does not block
+ * a carrier thread, this does not hold up the submitting thread or any other
+ * task.
+ *
+ * @author Michael Bachmann
+ *
+ */
+class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+	private final ThreadFactory threadFactory;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+
+	// guarded by itself
+	private final Set<Thread> threads;
+	private final CountDownLatch terminated;
+
+	private volatile boolean shutdown;
+
+	/**
+	 * @param threadFactory
+	 *            factory for the threads running the tasks
+	 * @param maxConcurrency
+	 *            the maximum number of tasks running at the same time or zero for
+	 *            no limit
+	 */
+	public ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxConcurrency) {
+
+		if (maxConcurrency < 0) {
+			throw new IllegalArgumentException("Invalid concurrency limit: " + maxConcurrency);
+		}
+
+		this.threadFactory = threadFactory;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+		this.threads = new HashSet<>();
+		this.terminated = new CountDownLatch(1);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+
+		Runnable task = this.permits != null ? () -> runWithPermit(command) : command;
+
+		synchronized (this.threads) {
+
+			if (this.shutdown) {
+				throw new RejectedExecutionException("Executor has been shut down.");
+			}
+
+			Thread thread = this.threadFactory.newThread(() -> {
+				try {
+					task.run();
+				} finally {
+					exited(Thread.currentThread());
+				}
+			});
+			this.threads.add(thread);
+			thread.start();
+		}
+	}
+
+	// the task has been accepted already, so it must not be dropped just because
+	// its thread was interrupted while waiting for a permit
+	private void runWithPermit(Runnable command) {
+
+		this.permits.acquireUninterruptibly();
+
+		try {
+			command.run();
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	private void exited(Thread thread) {
+		synchronized (this.threads) {
+			this.threads.remove(thread);
+			if (this.shutdown && this.threads.isEmpty()) {
+				this.terminated.countDown();
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		synchronized (this.threads) {
+			this.shutdown = true;
+			if (this.threads.isEmpty()) {
+				this.terminated.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Shuts this executor down and interrupts all of its threads. Since every task
+	 * is started in its own thread right away, there are never any tasks that have
+	 * not been started yet, so the returned list is always empty.
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		synchronized (this.threads) {
+			shutdown();
+			this.threads.forEach(Thread::interrupt);
+		}
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return this.shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return this.terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.terminated.await(timeout, unit);
+	}
+
+	/**
+	 * @return the factory for the threads running the tasks
+	 */
+	public ThreadFactory getThreadFactory() {
+		return this.threadFactory;
+	}
+
+	/**
+	 * @return the maximum number of tasks running at the same time or zero if the
+	 *         number is not limited
+	 */
+	public int getMaxConcurrency() {
+		return this.maxConcurrency;
+	}
+}
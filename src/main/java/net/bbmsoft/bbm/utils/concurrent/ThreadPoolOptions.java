@@ -0,0 +1,237 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options for creating a {@link ThreadPoolExecutor} with more control than the
+ * factory methods in {@link Executors} offer. Most importantly, core threads can
+ * be started right away, so the first tasks do not pay for thread creation,
+ * and the task queue can be bounded, so an overloaded pool rejects tasks
+ * instead of its queue growing without limit.
+ * <p>
+ * As with any {@link ThreadPoolExecutor}, threads beyond the core threads are
+ * only started once the queue is full. With a bounded queue, a pool with more
+ * maximum than core threads thus first queues tasks, then grows and finally
+ * rejects tasks once it has reached its maximum size and its queue is full.
+ * What happens to rejected tasks is up to the rejection policy: by default, the
+ * submitting thread gets a {@link java.util.concurrent.RejectedExecutionException}.
+ * {@link ThreadPoolExecutor.CallerRunsPolicy} makes the submitting thread run the
+ * task itself instead, which throttles submissions to the pool's pace.
+ * <p>
+ * All options have a setter that returns the options themselves, so they can be
+ * chained. The defaults are those of {@link Executors#newFixedThreadPool(int)}
+ * with as many threads as the system has processor cores.
+ *
+ * @author Michael Bachmann
+ *
+ * @see ParallelSynchronousExecutor#withThreadPool(ThreadPoolOptions)
+ */
+public class ThreadPoolOptions {
+
+	/**
+	 * Queue capacity that lets the queue grow without limit. This is the default.
+	 */
+	public static final int UNBOUNDED_QUEUE = -1;
+
+	/**
+	 * Queue capacity that hands every task over to a thread directly, so tasks are
+	 * rejected if all threads are busy and the pool has reached its maximum size.
+	 */
+	public static final int NO_QUEUE = 0;
+
+	private int coreThreads;
+	private int maxThreads;
+	private Duration keepAlive;
+	private boolean coreThreadTimeOut;
+	private boolean prestartCoreThreads;
+	private int queueCapacity;
+	private RejectedExecutionHandler rejectionPolicy;
+	private ThreadFactory threadFactory;
+
+	public ThreadPoolOptions() {
+		this.coreThreads = Runtime.getRuntime().availableProcessors();
+		this.maxThreads = this.coreThreads;
+		this.keepAlive = Duration.ZERO;
+		this.queueCapacity = UNBOUNDED_QUEUE;
+		this.rejectionPolicy = new ThreadPoolExecutor.AbortPolicy();
+		this.threadFactory = Executors.defaultThreadFactory();
+	}
+
+	/**
+	 * Sets both the number of core threads and the maximum number of threads.
+	 */
+	public ThreadPoolOptions setThreads(int threads) {
+		return setThreads(threads, threads);
+	}
+
+	/**
+	 * @param coreThreads
+	 *            the number of threads that are kept even if they are idle, unless
+	 *            core threads time out
+	 * @param maxThreads
+	 *            the maximum number of threads, which is only reached if the queue
+	 *            is bounded
+	 * @throws IllegalArgumentException
+	 *             if {@code coreThreads} is negative or {@code maxThreads} is not
+	 *             positive or less than {@code coreThreads}
+	 */
+	public ThreadPoolOptions setThreads(int coreThreads, int maxThreads) {
+
+		if (coreThreads < 0 || maxThreads < 1 || maxThreads < coreThreads) {
+			throw new IllegalArgumentException("Invalid number of threads: " + coreThreads + " to " + maxThreads);
+		}
+
+		this.coreThreads = coreThreads;
+		this.maxThreads = maxThreads;
+		return this;
+	}
+
+	/**
+	 * Sets how long threads beyond the core threads are kept while they are idle.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if {@code keepAlive} is negative
+	 */
+	public ThreadPoolOptions setKeepAlive(Duration keepAlive) {
+
+		if (keepAlive.isNegative()) {
+			throw new IllegalArgumentException("Invalid keep-alive time: " + keepAlive);
+		}
+
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * Sets whether core threads are terminated like other threads once they have
+	 * been idle for the keep-alive time, which must be positive then. Disabled by
+	 * default.
+	 */
+	public ThreadPoolOptions setCoreThreadTimeOut(boolean coreThreadTimeOut) {
+		this.coreThreadTimeOut = coreThreadTimeOut;
+		return this;
+	}
+
+	/**
+	 * Sets whether all core threads are started when the pool is created, instead
+	 * of one by one as tasks are submitted. This way even the first tasks run on
+	 * a warm pool. Disabled by default.
+	 */
+	public ThreadPoolOptions setPrestartCoreThreads(boolean prestartCoreThreads) {
+		this.prestartCoreThreads = prestartCoreThreads;
+		return this;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            the maximum number of tasks waiting for a thread,
+	 *            {@link #NO_QUEUE} or {@link #UNBOUNDED_QUEUE}
+	 * @throws IllegalArgumentException
+	 *             if {@code queueCapacity} is neither positive nor one of the
+	 *             constants mentioned above
+	 */
+	public ThreadPoolOptions setQueueCapacity(int queueCapacity) {
+
+		if (queueCapacity < UNBOUNDED_QUEUE) {
+			throw new IllegalArgumentException("Invalid queue capacity: " + queueCapacity);
+		}
+
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	/**
+	 * Sets what happens to tasks the pool cannot accept because its queue is full
+	 * or it has been shut down. Policies that silently drop tasks, like
+	 * {@link ThreadPoolExecutor.DiscardPolicy}, must not be used for the pool of a
+	 * {@link ParallelSynchronousExecutor}, since its calls would wait for the
+	 * dropped tasks forever.
+	 */
+	public ThreadPoolOptions setRejectionPolicy(RejectedExecutionHandler rejectionPolicy) {
+		this.rejectionPolicy = rejectionPolicy;
+		return this;
+	}
+
+	/**
+	 * Sets the factory for the pool's threads. A {@link CustomThreadFactory}
+	 * allows to choose the threads' name, priority, stack size, thread group and
+	 * uncaught exception handler.
+	 */
+	public ThreadPoolOptions setThreadFactory(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+		return this;
+	}
+
+	public int getCoreThreads() {
+		return this.coreThreads;
+	}
+
+	public int getMaxThreads() {
+		return this.maxThreads;
+	}
+
+	public Duration getKeepAlive() {
+		return this.keepAlive;
+	}
+
+	public boolean isCoreThreadTimeOut() {
+		return this.coreThreadTimeOut;
+	}
+
+	public boolean isPrestartCoreThreads() {
+		return this.prestartCoreThreads;
+	}
+
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+
+	public RejectedExecutionHandler getRejectionPolicy() {
+		return this.rejectionPolicy;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return this.threadFactory;
+	}
+
+	/**
+	 * Creates a new thread pool with these options.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if core threads are to time out, but the keep-alive time is zero
+	 */
+	public ThreadPoolExecutor createThreadPool() {
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(this.coreThreads, this.maxThreads,
+				this.keepAlive.toNanos(), TimeUnit.NANOSECONDS, createQueue(), this.threadFactory,
+				this.rejectionPolicy);
+
+		pool.allowCoreThreadTimeOut(this.coreThreadTimeOut);
+
+		if (this.prestartCoreThreads) {
+			pool.prestartAllCoreThreads();
+		}
+
+		return pool;
+	}
+
+	private BlockingQueue<Runnable> createQueue() {
+		switch (this.queueCapacity) {
+		case UNBOUNDED_QUEUE:
+			return new LinkedBlockingQueue<>();
+		case NO_QUEUE:
+			return new SynchronousQueue<>();
+		default:
+			return new ArrayBlockingQueue<>(this.queueCapacity);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit in the form of a token bucket. The bucket holds up to a number of
+ * tokens given by its burst size and is refilled continuously at its rate.
+ * Every permit takes a token, so permits can be granted at once as long as
+ * there are tokens left and at exactly the bucket's rate after that.
+ * <p>
+ * Instead of waiting for a token, permits are reserved in advance:
+ * {@link #reserve()} hands out the next free token right away and tells the
+ * caller how long to wait before using it, so a scheduler can run the permitted
+ * action at the right time without blocking any thread in the meantime. The
+ * bucket's whole state is a single atomic value, the time at which the bucket
+ * will be full again (the "theoretical arrival time" of the generic cell rate
+ * algorithm), so reserving a token takes a single compare-and-set.
+ * <p>
+ * The interval between two tokens is rounded up to whole nanoseconds, so the
+ * rate is never exceeded, not even by rounding errors. A bucket can be shared
+ * by several executors to enforce a rate limit for all of them combined.
+ *
+ * @author Michael Bachmann
+ *
+ * @see RateLimitedExecutor
+ * @see ParallelSynchronousExecutor#setRateLimit(TokenBucket)
+ */
+public class TokenBucket {
+
+	/**
+	 * Returned by {@link #reserve(long)} if the bucket has been retired.
+	 */
+	static final long RETIRED = Long.MIN_VALUE;
+
+	private final double rate;
+	private final int burst;
+
+	// time between two tokens in nanoseconds
+	private final long interval;
+
+	// how far the theoretical arrival time may be ahead of now for a token to be
+	// available right away, which is one interval less than a full bucket
+	private final long tolerance;
+
+	// the time at which the bucket will be full again, in terms of System.nanoTime()
+	private final AtomicLong fullAt;
+
+	/**
+	 * Creates a token bucket that is full initially.
+	 *
+	 * @param permitsPerSecond
+	 *            the rate at which the bucket is refilled
+	 * @param burst
+	 *            the maximum number of tokens the bucket can hold, i.e. the number
+	 *            of permits that can be granted at once after a period of
+	 *            inactivity
+	 * @throws IllegalArgumentException
+	 *             if {@code permitsPerSecond} is not positive or higher than one
+	 *             permit per nanosecond or if {@code burst} is not positive
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, System.nanoTime());
+	}
+
+	/**
+	 * Creates a token bucket that is full at the specified time, in terms of
+	 * {@link System#nanoTime()}.
+	 */
+	TokenBucket(double permitsPerSecond, int burst, long now) {
+
+		if (!(permitsPerSecond > 0) || permitsPerSecond > TimeUnit.SECONDS.toNanos(1)) {
+			throw new IllegalArgumentException("Invalid rate: " + permitsPerSecond);
+		}
+
+		if (burst < 1) {
+			throw new IllegalArgumentException("Invalid burst size: " + burst);
+		}
+
+		this.rate = permitsPerSecond;
+		this.burst = burst;
+		this.interval = (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+		this.tolerance = this.interval * (burst - 1);
+		this.fullAt = new AtomicLong(now);
+	}
+
+	/**
+	 * Takes a token if one is available right now.
+	 *
+	 * @return {@code true} if a token has been taken, {@code false} if the bucket
+	 *         is empty
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(System.nanoTime());
+	}
+
+	/**
+	 * Takes a token if one is available at the specified time, in terms of
+	 * {@link System#nanoTime()}.
+	 */
+	boolean tryAcquire(long now) {
+
+		while (true) {
+
+			long fullAt = this.fullAt.get();
+
+			if (fullAt == RETIRED || fullAt - this.tolerance - now > 0) {
+				return false;
+			}
+
+			if (this.fullAt.compareAndSet(fullAt, later(fullAt, now) + this.interval)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Reserves the next free token. The caller must not use the permit before the
+	 * returned time has passed, but does not need to check back with the bucket.
+	 *
+	 * @return the time in nanoseconds to wait before using the permit, zero if it
+	 *         can be used right away
+	 */
+	public long reserve() {
+		long now = System.nanoTime();
+		return Math.max(0, reserve(now) - now);
+	}
+
+	/**
+	 * Reserves the next free token that is available no earlier than the
+	 * specified time.
+	 *
+	 * @param earliest
+	 *            the earliest time the permit is going to be used, in terms of
+	 *            {@link System#nanoTime()}
+	 * @return the time at which the permit may be used, in terms of
+	 *         {@link System#nanoTime()}, or {@link #RETIRED} if the bucket has been
+	 *         retired
+	 */
+	long reserve(long earliest) {
+
+		while (true) {
+
+			long fullAt = this.fullAt.get();
+
+			if (fullAt == RETIRED) {
+				return RETIRED;
+			}
+
+			long available = later(earliest, fullAt - this.tolerance);
+
+			if (this.fullAt.compareAndSet(fullAt, later(fullAt, available) + this.interval)) {
+				return available;
+			}
+		}
+	}
+
+	/**
+	 * Retires the bucket if it has been full since the specified time, so it can
+	 * be discarded without granting more permits than the rate allows. A retired
+	 * bucket grants no more permits.
+	 *
+	 * @return {@code true} if the bucket has been retired, {@code false} if it has
+	 *         been used since the specified time
+	 */
+	boolean retireIfIdleSince(long time) {
+		long fullAt = this.fullAt.get();
+		return fullAt != RETIRED && fullAt - time <= 0 && this.fullAt.compareAndSet(fullAt, RETIRED);
+	}
+
+	/**
+	 * @return the rate at which the bucket is refilled, in permits per second
+	 */
+	public double getRate() {
+		return this.rate;
+	}
+
+	/**
+	 * @return the maximum number of tokens the bucket can hold
+	 */
+	public int getBurst() {
+		return this.burst;
+	}
+
+	// nano times must be compared by their difference, they may overflow
+	private static long later(long a, long b) {
+		return a - b >= 0 ? a : b;
+	}
+}
@@ -0,0 +1,170 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import java.time.Duration;
+
+/**
+ * Determines when the latest update submitted to a
+ * {@link RepetitiveUpdateExecutor} is run. Updates are held back by a timer
+ * instead of by blocking the executor's worker, so the worker stays free for
+ * other tasks and any number of update executors can share it.
+ * <p>
+ * An update can be run on the leading edge, i.e. right away when it is the
+ * first one after a quiet period, and/or on the trailing edge, i.e. once the
+ * policy's wait is over. Updates that come in while the wait is running only
+ * replace the pending update, so at most one update is run per edge:
+ * <ul>
+ * <li>{@link #throttle(Duration) Throttling} runs updates at most once per
+ * interval while updates keep coming in.</li>
+ * <li>{@link #debounce(Duration) Debouncing} runs the latest update only once
+ * no new updates have come in for the quiet period, which may never happen
+ * while updates keep coming in.</li>
+ * <li>{@link #debounce(Duration, Duration) Debouncing with a maximum wait}
+ * additionally runs the latest update if it has been pending for the maximum
+ * wait, so bursts of updates still show progress.</li>
+ * </ul>
+ * Policies are immutable, so the same policy can be used by any number of
+ * executors.
+ *
+ * @author Michael Bachmann
+ *
+ * @see RepetitiveUpdateExecutor#setUpdatePolicy(UpdatePolicy)
+ */
+public class UpdatePolicy {
+
+	private final Duration quietPeriod;
+	private final Duration maxWait;
+	private final boolean leading;
+	private final boolean trailing;
+
+	private UpdatePolicy(Duration quietPeriod, Duration maxWait, boolean leading, boolean trailing) {
+
+		if (quietPeriod.isNegative() || quietPeriod.isZero()) {
+			throw new IllegalArgumentException("Invalid wait: " + quietPeriod);
+		}
+
+		if (maxWait != null && maxWait.compareTo(quietPeriod) < 0) {
+			throw new IllegalArgumentException("Invalid maximum wait: " + maxWait);
+		}
+
+		if (!leading && !trailing) {
+			throw new IllegalArgumentException("Updates must be run on the leading edge, the trailing edge or both");
+		}
+
+		this.quietPeriod = quietPeriod;
+		this.maxWait = maxWait;
+		this.leading = leading;
+		this.trailing = trailing;
+	}
+
+	/**
+	 * Returns a policy that runs the first update right away and then the latest
+	 * update at most once per interval while updates keep coming in, including
+	 * the last update of a burst.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the interval is not positive
+	 */
+	public static UpdatePolicy throttle(Duration interval) {
+		return throttle(interval, true, true);
+	}
+
+	/**
+	 * Returns a policy that runs updates at most once per interval.
+	 *
+	 * @param leading
+	 *            whether the first update after an interval without updates is
+	 *            run right away
+	 * @param trailing
+	 *            whether the latest update of an interval is run at its end
+	 * @throws IllegalArgumentException
+	 *             if the interval is not positive or if updates are run on
+	 *             neither edge
+	 */
+	public static UpdatePolicy throttle(Duration interval, boolean leading, boolean trailing) {
+		return new UpdatePolicy(interval, interval, leading, trailing);
+	}
+
+	/**
+	 * Returns a policy that runs the latest update once no new updates have come
+	 * in for the quiet period.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the quiet period is not positive
+	 */
+	public static UpdatePolicy debounce(Duration quietPeriod) {
+		return new UpdatePolicy(quietPeriod, null, false, true);
+	}
+
+	/**
+	 * Returns a policy that runs the latest update once no new updates have come
+	 * in for the quiet period, or once it has been waiting for the maximum wait,
+	 * whichever comes first.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the quiet period is not positive or if the maximum wait is
+	 *             shorter than the quiet period
+	 */
+	public static UpdatePolicy debounce(Duration quietPeriod, Duration maxWait) {
+		return new UpdatePolicy(quietPeriod, maxWait, false, true);
+	}
+
+	/**
+	 * Returns a policy that is identical to this one, except that it runs updates
+	 * on the specified edges.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if updates are run on neither edge
+	 */
+	public UpdatePolicy withEdges(boolean leading, boolean trailing) {
+		return new UpdatePolicy(this.quietPeriod, this.maxWait, leading, trailing);
+	}
+
+	/**
+	 * @return the time without new updates after which the pending update is
+	 *         run, which is the interval of a throttling policy
+	 */
+	public Duration getQuietPeriod() {
+		return this.quietPeriod;
+	}
+
+	/**
+	 * @return the maximum time an update is pending before it is run or
+	 *         {@code null} if there is none
+	 */
+	public Duration getMaxWait() {
+		return this.maxWait;
+	}
+
+	public boolean isLeading() {
+		return this.leading;
+	}
+
+	public boolean isTrailing() {
+		return this.trailing;
+	}
+
+	/**
+	 * @param lastUpdate
+	 *            the time the latest update came in
+	 * @param waitingSince
+	 *            the time the current wait started
+	 * @return the time at which the current wait is over, in terms of
+	 *         {@link System#nanoTime()}
+	 */
+	long deadline(long lastUpdate, long waitingSince) {
+
+		long deadline = lastUpdate + this.quietPeriod.toNanos();
+
+		if (this.maxWait != null && deadline - (waitingSince + this.maxWait.toNanos()) > 0) {
+			deadline = waitingSince + this.maxWait.toNanos();
+		}
+
+		return deadline;
+	}
+
+	@Override
+	public String toString() {
+		return "UpdatePolicy [quietPeriod=" + this.quietPeriod + ", maxWait=" + this.maxWait + ", leading="
+				+ this.leading + ", trailing=" + this.trailing + "]";
+	}
+}
@@ -0,0 +1,97 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+
+	private static final long RTT = TimeUnit.MILLISECONDS.toNanos(10);
+
+	@Test
+	public void testPermitsAreLimited() {
+
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10, null);
+
+		assertTrue(limit.tryAcquire());
+		assertTrue(limit.tryAcquire());
+		assertFalse(limit.tryAcquire());
+
+		limit.release(-1);
+
+		assertTrue(limit.tryAcquire());
+	}
+
+	@Test
+	public void testLimitGrowsUpToMaximumWhileLatencyIsStable() {
+
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 50, null);
+
+		for (int i = 0; i < 100; i++) {
+			saturate(limit, RTT);
+		}
+
+		assertEquals(50, limit.getLimit());
+	}
+
+	@Test
+	public void testLimitShrinksWhenLatencyRises() {
+
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 50, null);
+
+		for (int i = 0; i < 100; i++) {
+			saturate(limit, RTT);
+		}
+
+		for (int i = 0; i < 20; i++) {
+			saturate(limit, 10 * RTT);
+		}
+
+		assertTrue(limit.getLimit() < 25);
+		assertTrue(limit.getLimit() >= 1);
+	}
+
+	@Test
+	public void testLimitChangesAreReported() {
+
+		int[] reported = new int[1];
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 50, l -> reported[0] = l);
+
+		for (int i = 0; i < 100; i++) {
+			saturate(limit, RTT);
+		}
+
+		assertEquals(50, reported[0]);
+	}
+
+	@Test(timeout = 10_000)
+	public void testTimedAcquireGivesUpAtDeadline() {
+
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, null);
+
+		assertTrue(limit.tryAcquireUntil(System.nanoTime()));
+		assertFalse(limit.tryAcquireUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20)));
+
+		limit.release(-1);
+
+		assertTrue(limit.tryAcquireUntil(System.nanoTime()));
+	}
+
+	// acquires all permits and returns them with the specified latency
+	private static void saturate(AdaptiveConcurrencyLimit limit, long rtt) {
+
+		int acquired = 0;
+
+		while (limit.tryAcquire()) {
+			acquired++;
+		}
+
+		for (int i = 0; i < acquired; i++) {
+			limit.release(rtt);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class ExecutorMetricsTest {
+
+	private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	@Test
+	public void testMetricsAreDisabledByDefault() {
+
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(2, "metrics-default", true);
+
+		try {
+			assertNull(exec.getMetrics());
+		} finally {
+			exec.close();
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testCloseUnregistersMetrics() {
+
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(2, "metrics-close", true);
+		exec.setMetricsEnabled(true);
+
+		ObjectName name = ((ExecutorMetrics) exec.getMetrics()).getObjectName();
+		assertTrue(this.server.isRegistered(name));
+
+		Runnable task = () -> {
+		};
+		exec.execute(Collections.nCopies(10, task));
+		assertEquals(10, exec.getMetrics().getCompletedTaskCount());
+
+		exec.close();
+
+		assertFalse(this.server.isRegistered(name));
+	}
+
+	@Test(timeout = 10_000)
+	public void testSameNameIsRegisteredWithNumber() {
+
+		ParallelSynchronousExecutor first = ParallelSynchronousExecutor.withFixedThreadPool(1, "metrics-same", true);
+		ParallelSynchronousExecutor second = ParallelSynchronousExecutor.withFixedThreadPool(1, "metrics-same", true);
+
+		try {
+			first.setMetricsEnabled(true);
+			second.setMetricsEnabled(true);
+
+			ObjectName firstName = ((ExecutorMetrics) first.getMetrics()).getObjectName();
+			ObjectName secondName = ((ExecutorMetrics) second.getMetrics()).getObjectName();
+
+			assertFalse(firstName.equals(secondName));
+			assertTrue(this.server.isRegistered(firstName));
+			assertTrue(this.server.isRegistered(secondName));
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test(timeout = 30_000)
+	public void testCollectedExecutorDoesNotStayRegistered() throws InterruptedException {
+
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withCachedThreadPool("metrics-gc", true);
+		exec.setMetricsEnabled(true);
+
+		ObjectName name = ((ExecutorMetrics) exec.getMetrics()).getObjectName();
+		WeakReference<ParallelSynchronousExecutor> reference = new WeakReference<>(exec);
+		exec = null;
+
+		while (reference.get() != null) {
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		// collected executors are unregistered whenever metrics are registered
+		ParallelSynchronousExecutor other = ParallelSynchronousExecutor.withFixedThreadPool(1, "metrics-other", true);
+		try {
+			while (this.server.isRegistered(name)) {
+				other.setMetricsEnabled(false);
+				other.setMetricsEnabled(true);
+				Thread.sleep(10);
+			}
+		} finally {
+			other.close();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class ForkJoinParallelExecutorTest {
+
+	private static final int SIZE = 10_000;
+
+	private final ForkJoinParallelExecutor exec = new ForkJoinParallelExecutor(4, "fork-join-test", true);
+
+	@Test(timeout = 10_000)
+	public void testSpliteratorVisitsEveryElementOnce() {
+
+		AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+
+		this.exec.forEachParallel(range(SIZE).spliterator(), visits::incrementAndGet);
+
+		assertVisitedOnce(visits);
+	}
+
+	@Test(timeout = 10_000)
+	public void testIteratorOfUnknownSizeVisitsEveryElementOnce() {
+
+		AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+
+		this.exec.forEachParallel(range(SIZE).iterator(), visits::incrementAndGet);
+
+		assertVisitedOnce(visits);
+	}
+
+	@Test(timeout = 10_000)
+	public void testStreamVisitsEveryElementOnce() {
+
+		AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+
+		// filtering makes the size of the stream unknown
+		this.exec.forEachParallel(IntStream.range(0, SIZE).filter(i -> i >= 0).boxed(), visits::incrementAndGet);
+
+		assertVisitedOnce(visits);
+	}
+
+	@Test(timeout = 10_000)
+	public void testAsyncCompletesAfterEveryElement() throws Exception {
+
+		AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+
+		this.exec.forEachParallelAsync(range(SIZE), visits::incrementAndGet).get();
+
+		assertVisitedOnce(visits);
+	}
+
+	@Test(timeout = 10_000)
+	public void testExceptionsAreReportedWithoutSkippingOtherElements() {
+
+		List<Throwable> reported = Collections.synchronizedList(new ArrayList<>());
+		UncaughtExceptionHandler handler = (t, e) -> reported.add(e);
+		ForkJoinParallelExecutor exec = new ForkJoinParallelExecutor(
+				new ForkJoinPool(4, ForkJoinPool.defaultForkJoinWorkerThreadFactory, handler, false));
+
+		AtomicIntegerArray visits = new AtomicIntegerArray(SIZE);
+
+		// the calling thread helps to complete the call
+		Thread thread = Thread.currentThread();
+		UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+		thread.setUncaughtExceptionHandler(handler);
+
+		try {
+			exec.forEachParallel(range(SIZE), i -> {
+				visits.incrementAndGet(i);
+				if (i % 1_000 == 0) {
+					throw new IllegalStateException("failure " + i);
+				}
+			});
+		} finally {
+			thread.setUncaughtExceptionHandler(previous);
+			exec.getPool().shutdown();
+		}
+
+		assertVisitedOnce(visits);
+		assertEquals(SIZE / 1_000, reported.size());
+	}
+
+	private static void assertVisitedOnce(AtomicIntegerArray visits) {
+		for (int i = 0; i < visits.length(); i++) {
+			assertEquals("visits of " + i, 1, visits.get(i));
+		}
+	}
+
+	private static List<Integer> range(int size) {
+		List<Integer> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,108 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class KeyedExecutorTest {
+
+	@Test(timeout = 10_000)
+	public void testTasksWithSameKeyRunInOrder() throws InterruptedException {
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		KeyedExecutor<Integer> exec = new KeyedExecutor<>(pool);
+
+		int keys = 10;
+		int tasksPerKey = 1_000;
+
+		List<List<Integer>> results = new ArrayList<>();
+		for (int k = 0; k < keys; k++) {
+			results.add(new ArrayList<>());
+		}
+
+		CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+		for (int i = 0; i < tasksPerKey; i++) {
+			for (int k = 0; k < keys; k++) {
+				// lists are not thread safe, so this also checks that tasks of the
+				// same key never overlap
+				List<Integer> result = results.get(k);
+				int value = i;
+				exec.execute(k, () -> {
+					result.add(value);
+					done.countDown();
+				});
+			}
+		}
+
+		done.await();
+
+		for (List<Integer> result : results) {
+			assertEquals(tasksPerKey, result.size());
+			for (int i = 0; i < tasksPerKey; i++) {
+				assertEquals(i, result.get(i).intValue());
+			}
+		}
+
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.SECONDS);
+		assertEquals(0, exec.getActiveKeyCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void testRejectedTaskDoesNotBlockItsKey() throws InterruptedException {
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1));
+		KeyedExecutor<String> exec = new KeyedExecutor<>(pool);
+
+		// saturate the pool: one task running, one queued
+		CountDownLatch blocked = new CountDownLatch(1);
+		pool.execute(() -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		pool.execute(() -> {
+		});
+
+		AtomicBoolean rejectedRan = new AtomicBoolean();
+
+		try {
+			exec.execute("key", () -> rejectedRan.set(true));
+			fail("Task should have been rejected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		assertEquals(0, exec.getActiveKeyCount());
+
+		blocked.countDown();
+		while (pool.getCompletedTaskCount() < 2) {
+			Thread.sleep(1);
+		}
+
+		CountDownLatch done = new CountDownLatch(1);
+		exec.execute("key", done::countDown);
+		done.await();
+
+		assertFalse(rejectedRan.get());
+
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.SECONDS);
+	}
+}
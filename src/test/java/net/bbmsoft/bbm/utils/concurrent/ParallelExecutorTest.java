@@ -3,8 +3,10 @@ package net.bbmsoft.bbm.utils.concurrent;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
@@ -14,8 +16,29 @@ public class ParallelExecutorTest {
 
 	@Test
 	public void testForeachParallelWithIndex() {
+		sequential().forEachParallel(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9),
+				(item, index) -> assertEquals(item, index));
+	}
+
+	@Test
+	public void testForLongRangeAtTheEdgesOfLong() {
+
+		AtomicInteger processed = new AtomicInteger();
 
-		ParallelExecutor exec = new ParallelExecutor() {
+		sequential().forLongRange(Long.MIN_VALUE, Long.MIN_VALUE + 100, i -> processed.incrementAndGet());
+		sequential().forLongRange(Long.MAX_VALUE - 100, Long.MAX_VALUE, i -> processed.incrementAndGet());
+
+		assertEquals(200, processed.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForLongRangeRejectsRangesLargerThanLong() {
+		sequential().forLongRange(Long.MIN_VALUE, 1, i -> fail("No value should be visited"));
+	}
+
+	private static ParallelExecutor sequential() {
+
+		return new ParallelExecutor() {
 
 			@Override
 			public void executeBatch() {
@@ -26,12 +49,14 @@ public class ParallelExecutorTest {
 				tasks.forEachRemaining(t -> t.run());
 			}
 
+			@Override
+			public void execute(Collection<? extends Runnable> tasks) {
+				execute(tasks.iterator());
+			}
+
 			@Override
 			public void batch(Collection<Runnable> runnables) {
 			}
 		};
-
-		exec.forEachParallel(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), (item, index) -> assertEquals(item, index));
 	}
-
 }
@@ -0,0 +1,895 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ParallelSynchronousExecutorTest {
+
+	private final ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(4, "test", true);
+
+	@Test
+	public void testPartitionedForeachParallel() {
+
+		List<Integer> items = range(10_000);
+		AtomicLong sum = new AtomicLong();
+
+		this.exec.setPartitions(ParallelSynchronousExecutor.AUTO_PARTITIONING);
+		this.exec.forEachParallel(items, i -> sum.addAndGet(i));
+
+		assertEquals(49_995_000L, sum.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testVirtualThreadsRespectConcurrencyLimit() {
+
+		Assume.assumeTrue(CustomThreadFactory.isVirtualThreadSupported());
+
+		ParallelSynchronousExecutor virtual = ParallelSynchronousExecutor.withVirtualThreads("virtual", 4);
+
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+
+		try {
+			virtual.forEachParallel(range(200), i -> {
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					// not interrupted
+				}
+				inFlight.decrementAndGet();
+				completed.incrementAndGet();
+			});
+		} finally {
+			virtual.shutdown();
+		}
+
+		assertEquals(200, completed.get());
+		assertTrue(maxInFlight.get() <= 4);
+	}
+
+	@Test
+	public void testPartitionedForeachParallelWithIndex() {
+
+		List<Integer> items = range(10_001);
+		AtomicInteger processed = new AtomicInteger();
+		AtomicInteger mismatches = new AtomicInteger();
+
+		this.exec.setPartitions(7);
+		this.exec.forEachParallel(items, (item, index) -> {
+			// failed assertions on worker threads would not fail the test
+			if (item.intValue() != index) {
+				mismatches.incrementAndGet();
+			}
+			processed.incrementAndGet();
+		});
+
+		assertEquals(0, mismatches.get());
+		assertEquals(items.size(), processed.get());
+	}
+
+	@Test
+	public void testDynamicPartitioningVisitsEveryElementOnce() {
+
+		List<Integer> items = range(10_000);
+		AtomicLong sum = new AtomicLong();
+		AtomicInteger processed = new AtomicInteger();
+
+		this.exec.setPartitions(ParallelSynchronousExecutor.DYNAMIC_PARTITIONING);
+		this.exec.forEachParallel(items, i -> {
+			sum.addAndGet(i);
+			processed.incrementAndGet();
+		});
+		this.exec.forEachParallel(items.iterator(), i -> {
+			sum.addAndGet(i);
+			processed.incrementAndGet();
+		});
+
+		assertEquals(2 * items.size(), processed.get());
+		assertEquals(2 * 49_995_000L, sum.get());
+	}
+
+	@Test(timeout = 60_000)
+	public void testDynamicPartitioningDoesNotAllocatePerElement() {
+
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+
+		// the calling thread and the pool threads all run elements
+		List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		threads.add(Thread.currentThread());
+		ThreadFactory factory = new CustomThreadFactory("allocation-test", true);
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(4, r -> {
+			Thread thread = factory.newThread(r);
+			threads.add(thread);
+			return thread;
+		});
+		exec.setPartitions(ParallelSynchronousExecutor.DYNAMIC_PARTITIONING);
+		exec.setCallerRuns(true);
+
+		int small = 10_000;
+		int large = 2_000_000;
+		List<Integer> items = range(large);
+		AtomicLong sum = new AtomicLong();
+		Consumer<Integer> consumer = i -> sum.addAndGet(i);
+
+		try {
+			// let the JIT compile the dispatch path first
+			for (int i = 0; i < 10; i++) {
+				exec.forEachParallel(items, consumer);
+			}
+
+			// the fixed cost of a call cancels out
+			List<Integer> smallItems = items.subList(0, small);
+			long smallCall = allocatedBytes(threadBean, threads, () -> exec.forEachParallel(smallItems, consumer));
+			long largeCall = allocatedBytes(threadBean, threads, () -> exec.forEachParallel(items, consumer));
+
+			double perElement = (largeCall - smallCall) / (double) (large - small);
+			assertTrue("bytes per element: " + perElement, perElement < 0.1);
+		} finally {
+			exec.close();
+		}
+	}
+
+	private static long allocatedBytes(com.sun.management.ThreadMXBean threadBean, List<Thread> threads,
+			Runnable call) {
+
+		long[] ids;
+		synchronized (threads) {
+			ids = threads.stream().mapToLong(Thread::getId).toArray();
+		}
+
+		long before = LongStream.of(threadBean.getThreadAllocatedBytes(ids)).filter(b -> b > 0).sum();
+		call.run();
+		long after = LongStream.of(threadBean.getThreadAllocatedBytes(ids)).filter(b -> b > 0).sum();
+
+		return after - before;
+	}
+
+	@Test
+	public void testForRangeVisitsEveryValueOnce() {
+
+		AtomicLong sum = new AtomicLong();
+		AtomicInteger processed = new AtomicInteger();
+
+		this.exec.forRange(-5, 10_000, i -> {
+			sum.addAndGet(i);
+			processed.incrementAndGet();
+		});
+
+		assertEquals(10_005, processed.get());
+		assertEquals(49_995_000L - 15L, sum.get());
+	}
+
+	@Test
+	public void testForLongRangeAtTheEdgesOfLong() {
+
+		AtomicInteger processed = new AtomicInteger();
+
+		this.exec.forLongRange(Long.MIN_VALUE, Long.MIN_VALUE + 100, i -> processed.incrementAndGet());
+		this.exec.forLongRange(Long.MAX_VALUE - 100, Long.MAX_VALUE, i -> processed.incrementAndGet());
+
+		assertEquals(200, processed.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testForLongRangeRejectsRangesLargerThanLong() {
+		this.exec.forLongRange(Long.MIN_VALUE, 1, i -> fail("No value should be visited"));
+	}
+
+	@Test(timeout = 10_000)
+	public void testRateLimitIsNotExceeded() {
+
+		List<Integer> items = range(21);
+		AtomicInteger processed = new AtomicInteger();
+
+		// one token right away, then one every 5ms
+		this.exec.setRateLimit(new TokenBucket(200, 1));
+
+		long start = System.nanoTime();
+		this.exec.forEachParallel(items, i -> processed.incrementAndGet());
+		long elapsed = System.nanoTime() - start;
+
+		assertEquals(items.size(), processed.get());
+		assertTrue(elapsed >= Duration.ofMillis(100).toNanos());
+	}
+
+	@Test(timeout = 10_000)
+	public void testRateLimitedTasksWaitForSaturatedPool() {
+
+		// one thread and room for one more task in the queue
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor
+				.withThreadPool(new ThreadPoolOptions().setThreads(1).setQueueCapacity(1));
+		exec.setRateLimit(new TokenBucket(1_000, 1));
+
+		List<Integer> items = range(20);
+		AtomicInteger processed = new AtomicInteger();
+
+		try {
+			exec.forEachParallel(items, i -> {
+				processed.incrementAndGet();
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// not interrupted
+				}
+			});
+		} finally {
+			exec.close();
+		}
+
+		assertEquals(items.size(), processed.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testFailedTasksAreRetried() {
+
+		List<AtomicInteger> attempts = new ArrayList<>();
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			AtomicInteger counter = new AtomicInteger();
+			attempts.add(counter);
+			tasks.add(() -> {
+				if (counter.incrementAndGet() < 3) {
+					throw new IllegalStateException("transient failure");
+				}
+			});
+		}
+
+		this.exec.setFailFast(true);
+		this.exec.setRetryPolicy(new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(10)));
+		this.exec.execute(tasks);
+
+		for (AtomicInteger counter : attempts) {
+			assertEquals(3, counter.get());
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testPendingRetryDoesNotDelayRateLimitedTasks() throws InterruptedException {
+
+		AtomicInteger attempts = new AtomicInteger();
+
+		this.exec.setRateLimit(new TokenBucket(1_000, 1));
+		this.exec.setRetryPolicy(new RetryPolicy(2, Duration.ofSeconds(10), Duration.ofSeconds(10)));
+
+		// the retry is due in five to ten seconds
+		this.exec.executeAsync(Collections.singletonList(() -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new IllegalStateException("transient failure");
+			}
+		}));
+
+		while (attempts.get() == 0) {
+			Thread.sleep(1);
+		}
+		Thread.sleep(20);
+
+		AtomicInteger processed = new AtomicInteger();
+
+		long start = System.nanoTime();
+		this.exec.forEachParallel(range(10), i -> processed.incrementAndGet());
+		long elapsed = System.nanoTime() - start;
+
+		assertEquals(10, processed.get());
+		assertEquals(1, attempts.get());
+		assertTrue(elapsed < Duration.ofSeconds(1).toNanos());
+	}
+
+	@Test(timeout = 10_000)
+	public void testSaturatedBoundedPoolDoesNotFailCalls() {
+
+		ParallelSynchronousExecutor bounded = ParallelSynchronousExecutor.withThreadPool(new ThreadPoolOptions()
+				.setThreads(2).setQueueCapacity(2).setPrestartCoreThreads(true)
+				.setThreadFactory(new CustomThreadFactory("bounded", true)));
+
+		AtomicInteger completed = new AtomicInteger();
+
+		try {
+			bounded.forEachParallel(range(1_000), i -> completed.incrementAndGet());
+		} finally {
+			bounded.shutdown();
+		}
+
+		assertEquals(1_000, completed.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testSaturatedBoundedPoolFailsAsyncCalls() throws InterruptedException {
+
+		ParallelSynchronousExecutor bounded = ParallelSynchronousExecutor.withThreadPool(new ThreadPoolOptions()
+				.setThreads(1).setQueueCapacity(1).setRejectionPolicy((r, pool) -> {
+					throw new RejectedExecutionException("saturated");
+				}));
+		bounded.setMetricsEnabled(true);
+
+		CountDownLatch blocked = new CountDownLatch(1);
+		Runnable blocking = () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		};
+
+		try {
+			bounded.executeAsync(Arrays.asList(blocking, blocking, blocking));
+			fail("The call should have been rejected");
+		} catch (RejectedExecutionException e) {
+			assertEquals("saturated", e.getMessage());
+		} finally {
+			blocked.countDown();
+			bounded.close();
+		}
+
+		assertEquals(1, bounded.getMetrics().getRejectedTaskCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void testSaturatedBoundedPoolCountsTasksRunByCaller() {
+
+		ParallelSynchronousExecutor bounded = ParallelSynchronousExecutor
+				.withThreadPool(new ThreadPoolOptions().setThreads(1).setQueueCapacity(1));
+		bounded.setMetricsEnabled(true);
+
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+		try {
+			bounded.forEachParallel(range(20), i -> {
+				threads.add(Thread.currentThread());
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// not interrupted
+				}
+			});
+		} finally {
+			bounded.close();
+		}
+
+		assertTrue(threads.contains(Thread.currentThread()));
+		assertTrue(bounded.getMetrics().getRejectedTaskCount() > 0);
+	}
+
+	@Test
+	public void testStreamingWindowLimitsTasksInFlight() {
+
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+
+		Iterator<Runnable> tasks = new Iterator<Runnable>() {
+
+			private int remaining = 1_000;
+
+			@Override
+			public boolean hasNext() {
+				return this.remaining > 0;
+			}
+
+			@Override
+			public Runnable next() {
+				this.remaining--;
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				return () -> {
+					completed.incrementAndGet();
+					inFlight.decrementAndGet();
+				};
+			}
+		};
+
+		this.exec.setStreamingWindow(8);
+		this.exec.execute(tasks);
+
+		assertEquals(1_000, completed.get());
+		assertTrue(maxInFlight.get() <= 8);
+	}
+
+	@Test(timeout = 10_000)
+	public void testCallerRunsTasksWhilePoolIsBlocked() throws Exception {
+
+		ParallelSynchronousExecutor single = ParallelSynchronousExecutor.withFixedThreadPool(1, "caller-runs", true);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		AtomicLong sum = new AtomicLong();
+		AtomicInteger otherThreads = new AtomicInteger();
+		Thread caller = Thread.currentThread();
+
+		// occupies the only pool thread until the call below has completed
+		Thread blocker = new Thread(() -> single.execute(Collections.singletonList(() -> {
+			started.countDown();
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				// not interrupted
+			}
+		})));
+		blocker.setDaemon(true);
+		blocker.start();
+		started.await();
+
+		try {
+			single.setCallerRuns(true);
+			single.forEachParallel(range(1_000), i -> {
+				if (Thread.currentThread() != caller) {
+					otherThreads.incrementAndGet();
+				}
+				sum.addAndGet(i);
+			});
+		} finally {
+			blocked.countDown();
+			blocker.join();
+			single.shutdown();
+		}
+
+		assertEquals(0, otherThreads.get());
+		assertEquals(999 * 1_000 / 2, sum.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testClosedExecutorRejectsCalls() {
+
+		ParallelSynchronousExecutor closed = ParallelSynchronousExecutor.withFixedThreadPool(2, "closed", true);
+		AtomicInteger processed = new AtomicInteger();
+
+		closed.forEachParallel(range(10), i -> processed.incrementAndGet());
+		closed.close();
+		closed.close();
+
+		assertTrue(closed.isTerminated());
+
+		try {
+			closed.forEachParallel(range(10), i -> processed.incrementAndGet());
+			fail("RejectedExecutionException expected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		assertEquals(10, processed.get());
+	}
+
+	@Test
+	public void testMapParallelKeepsOrder() {
+
+		List<Integer> items = new LinkedList<>(range(1_000));
+
+		List<Integer> squares = this.exec.mapParallel(items, i -> i * i);
+
+		assertEquals(items.size(), squares.size());
+		for (int i = 0; i < squares.size(); i++) {
+			assertEquals(i * i, squares.get(i).intValue());
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testInterruptedMapParallelDoesNotReturnIncompleteResults() {
+
+		List<Integer> items = range(100);
+
+		Thread.currentThread().interrupt();
+
+		try {
+			this.exec.mapParallel(items, i -> {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					// not interrupted
+				}
+				return i;
+			});
+			fail("ParallelExecutionException expected");
+		} catch (ParallelExecutionException e) {
+			assertTrue(e.getCause() instanceof InterruptedException);
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+	}
+
+	@Test
+	public void testReduceParallel() {
+
+		this.exec.setPartitions(3);
+		String digits = this.exec.reduceParallel(range(100), "", (s, i) -> s + i % 10, String::concat);
+
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			expected.append(i % 10);
+		}
+
+		assertEquals(expected.toString(), digits);
+	}
+
+	@Test
+	public void testFailFastSkipsRemainingTasks() {
+
+		AtomicInteger started = new AtomicInteger();
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 1_000; i++) {
+			int index = i;
+			tasks.add(() -> {
+				started.incrementAndGet();
+				if (index == 0) {
+					throw new IllegalStateException("failure");
+				}
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			});
+		}
+
+		this.exec.setFailFast(true);
+
+		try {
+			this.exec.execute(tasks);
+			fail("ParallelExecutionException expected");
+		} catch (ParallelExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		assertTrue(started.get() < tasks.size());
+	}
+
+	@Test(timeout = 10_000)
+	public void testDeadlineReturnsPartialReport() {
+
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			tasks.add(() -> {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			});
+		}
+
+		ExecutionReport report = this.exec.execute(tasks, Duration.ofMillis(250));
+
+		assertFalse(report.isComplete());
+		assertEquals(100, report.getTotal());
+		assertEquals(100, report.getCompleted().size() + report.getCancelled().size()
+				+ report.getNotStarted().size());
+		assertFalse(report.getNotStarted().isEmpty());
+	}
+
+	@Test(timeout = 10_000)
+	public void testDeadlineIsKeptWithCallerRuns() throws Exception {
+
+		ParallelSynchronousExecutor single = ParallelSynchronousExecutor.withFixedThreadPool(1, "deadline", true);
+		CountDownLatch blocked = new CountDownLatch(1);
+
+		CompletableFuture<Void> blocker = single.executeAsync(Collections.singletonList(() -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				// not interrupted
+			}
+		}));
+
+		ExecutionReport report;
+		long elapsed;
+
+		try {
+			single.setCallerRuns(true);
+			long start = System.nanoTime();
+			// the calling thread must not get stuck in this task
+			report = single.execute(Collections.singletonList(() -> {
+				try {
+					Thread.sleep(5_000);
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			}), Duration.ofMillis(50));
+			elapsed = System.nanoTime() - start;
+		} finally {
+			blocked.countDown();
+			blocker.get();
+			single.shutdown();
+		}
+
+		assertFalse(report.isComplete());
+		assertTrue(elapsed < Duration.ofSeconds(1).toNanos());
+	}
+
+	@Test(timeout = 10_000)
+	public void testDeadlineIsKeptWhileAdaptiveLimitIsReached() {
+
+		ParallelSynchronousExecutor cached = ParallelSynchronousExecutor.withCachedThreadPool("adaptive", true);
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			tasks.add(() -> {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					// cancelled
+				}
+			});
+		}
+
+		ExecutionReport report;
+		long elapsed;
+
+		try {
+			// admits a single task at a time
+			cached.setAdaptiveConcurrency(1);
+			long start = System.nanoTime();
+			report = cached.execute(tasks, Duration.ofMillis(50));
+			elapsed = System.nanoTime() - start;
+		} finally {
+			cached.shutdown();
+		}
+
+		assertTrue(elapsed < Duration.ofMillis(250).toNanos());
+		assertTrue(report.getNotStarted().size() >= 9);
+	}
+
+	@Test
+	public void testExecuteBatchRunsEachRunnableOnce() {
+
+		AtomicInteger counter = new AtomicInteger();
+		List<Runnable> runnables = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			runnables.add(counter::incrementAndGet);
+		}
+
+		this.exec.batch(runnables);
+		this.exec.executeBatch();
+		this.exec.executeBatch();
+
+		assertEquals(100, counter.get());
+	}
+
+	@Test
+	public void testSpilledBatchRunsEachRunnableOnce() throws IOException {
+
+		AtomicLong sum = new AtomicLong();
+		Path directory = Files.createTempDirectory("spill");
+
+		try {
+			this.exec.setBatchSpillPolicy(new SpillPolicy(10, directory, new AddCodec(sum, -1)));
+
+			for (int i = 0; i < 1_000; i++) {
+				this.exec.batch(Collections.singletonList(new Add(sum, i)));
+			}
+
+			this.exec.executeBatch();
+
+			assertEquals(999 * 1_000 / 2, sum.get());
+			assertEquals(0, countFiles(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testFailedSpillIsNotCountedTowardsFlushSize() throws IOException, InterruptedException {
+
+		AtomicLong sum = new AtomicLong();
+		Path directory = Files.createTempDirectory("spill");
+
+		try {
+			// runnables with the value 13 cannot be encoded
+			this.exec.setBatchSpillPolicy(new SpillPolicy(2, directory, new AddCodec(sum, 13)));
+			this.exec.setBatchFlushSize(4);
+
+			this.exec.batch(Arrays.asList(new Add(sum, 1), new Add(sum, 2)));
+
+			try {
+				this.exec.batch(Arrays.asList(new Add(sum, 10), new Add(sum, 13), new Add(sum, 20)));
+				fail("Batching should have failed");
+			} catch (UncheckedIOException e) {
+				// expected
+			}
+
+			// these are the ones to reach the flush size
+			this.exec.batch(Arrays.asList(new Add(sum, 3), new Add(sum, 4)));
+
+			while (sum.get() < 10) {
+				Thread.sleep(10);
+			}
+
+			assertEquals(10, sum.get());
+		} finally {
+			this.exec.close();
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testSpilledRunnablesDroppedAfterFailureAreReported() throws IOException {
+
+		AtomicLong sum = new AtomicLong();
+		Path directory = Files.createTempDirectory("spill");
+
+		try {
+			this.exec.setFailFast(true);
+			this.exec.setBatchSpillPolicy(new SpillPolicy(1, directory, new AddCodec(sum, -1)));
+
+			this.exec.batch(Collections.singletonList(() -> {
+				throw new IllegalStateException("failure");
+			}));
+			for (int i = 0; i < 5; i++) {
+				this.exec.batch(Collections.singletonList(new Add(sum, i)));
+			}
+
+			try {
+				this.exec.executeBatch();
+				fail("Fail-fast batch should have thrown");
+			} catch (ParallelExecutionException e) {
+				assertEquals(1, e.getSuppressed().length);
+				assertTrue(e.getSuppressed()[0] instanceof CancellationException);
+				assertTrue(e.getSuppressed()[0].getMessage().startsWith("5 "));
+			}
+
+			assertEquals(0, sum.get());
+			assertEquals(0, countFiles(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testBatchIsFlushedAfterLinger() throws InterruptedException {
+
+		AtomicInteger counter = new AtomicInteger();
+
+		this.exec.setBatchLinger(Duration.ofMillis(10));
+		this.exec.batch(Arrays.asList(counter::incrementAndGet, counter::incrementAndGet));
+
+		while (counter.get() < 2) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testPendingLingerFlushIsCancelledOnClose() throws InterruptedException {
+
+		List<Throwable> reported = Collections.synchronizedList(new ArrayList<>());
+		UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((t, e) -> reported.add(e));
+
+		try {
+			this.exec.setBatchLinger(Duration.ofMillis(100));
+			this.exec.batch(Collections.singletonList(() -> {
+			}));
+			this.exec.close();
+
+			// a flush that fires after close would fail on the shut down pool
+			Thread.sleep(300);
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(previous);
+		}
+
+		assertEquals(Collections.emptyList(), reported);
+	}
+
+	@Test(timeout = 10_000)
+	public void testForeachParallelAsync() throws Exception {
+
+		List<Integer> items = range(1_000);
+		AtomicLong sum = new AtomicLong();
+
+		CompletableFuture<Void> future = this.exec.forEachParallelAsync(items, i -> sum.addAndGet(i));
+		future.get();
+
+		assertEquals(999 * 1_000 / 2, sum.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testNestedForeachParallelDoesNotDeadlock() {
+
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(2, "nested", true);
+		List<Integer> items = range(20);
+		AtomicInteger processed = new AtomicInteger();
+
+		exec.forEachParallel(items, i -> exec.forEachParallel(items, j -> processed.incrementAndGet()));
+
+		assertEquals(400, processed.get());
+	}
+
+	private static long countFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private static class AddCodec implements TaskCodec {
+
+		private final AtomicLong sum;
+		private final long invalid;
+
+		public AddCodec(AtomicLong sum, long invalid) {
+			this.sum = sum;
+			this.invalid = invalid;
+		}
+
+		@Override
+		public void encode(Runnable task, DataOutput out) throws IOException {
+
+			long value = ((Add) task).value;
+
+			if (value == this.invalid) {
+				throw new IOException("Cannot encode " + value);
+			}
+
+			out.writeLong(value);
+		}
+
+		@Override
+		public Runnable decode(DataInput in) throws IOException {
+			return new Add(this.sum, in.readLong());
+		}
+	}
+
+	private static class Add implements Runnable {
+
+		private final AtomicLong sum;
+		private final long value;
+
+		public Add(AtomicLong sum, long value) {
+			this.sum = sum;
+			this.value = value;
+		}
+
+		@Override
+		public void run() {
+			this.sum.addAndGet(this.value);
+		}
+	}
+
+	private static List<Integer> range(int size) {
+		List<Integer> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,139 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class PipelineTest {
+
+	@Test(timeout = 10_000)
+	public void testItemsPassAllStagesWithBoundedMemory() {
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+
+		List<Integer> items = range(1_000);
+
+		AtomicInteger inPipeline = new AtomicInteger();
+		AtomicInteger maxInPipeline = new AtomicInteger();
+		AtomicLong sum = new AtomicLong();
+
+		Pipeline<Integer> pipeline = Pipeline.<Integer>builder(pool)
+				.map(i -> {
+					maxInPipeline.accumulateAndGet(inPipeline.incrementAndGet(), Math::max);
+					return String.valueOf(i);
+				}, 2, 4)
+				.map(Integer::parseInt, 3, 4)
+				.forEach(i -> {
+					sum.addAndGet(i);
+					inPipeline.decrementAndGet();
+				}, 1, 4);
+
+		pipeline.run(items);
+		pool.shutdown();
+
+		assertEquals(999 * 1_000 / 2, sum.get());
+		// the queues of the second and last stage and all workers
+		assertTrue(maxInPipeline.get() <= 4 + 4 + 2 + 3 + 1);
+	}
+
+	@Test(timeout = 10_000)
+	public void testFailingStageAbortsRun() {
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+
+		AtomicInteger consumed = new AtomicInteger();
+		Iterator<Integer> items = new Iterator<Integer>() {
+
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Integer next() {
+				return consumed.getAndIncrement();
+			}
+		};
+
+		Pipeline<Integer> pipeline = Pipeline.<Integer>builder(pool)
+				.map(i -> {
+					if (i == 10) {
+						throw new IllegalStateException("failure");
+					}
+					return i;
+				}, 2, 4)
+				.forEach(i -> {
+				}, 2, 4);
+
+		try {
+			// the input is endless, so the run only returns if it is aborted
+			pipeline.run(items);
+			fail("ParallelExecutionException expected");
+		} catch (ParallelExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		} finally {
+			pool.shutdown();
+		}
+
+		// items up to the failing one plus at most what fits into the queues and workers
+		assertTrue(consumed.get() <= 11 + 4 + 2 + 4 + 2);
+	}
+
+	@Test(timeout = 10_000)
+	public void testNullResultsDropItems() {
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+
+		List<Integer> passed = Collections.synchronizedList(new ArrayList<>());
+
+		// far more items than fit into the queues, so dropped items must free their room
+		Pipeline<Integer> pipeline = Pipeline.<Integer>builder(pool)
+				.map(i -> i % 2 == 0 ? i : null, 2, 2)
+				.forEach(passed::add, 2, 2);
+
+		pipeline.run(range(1_000));
+		pool.shutdown();
+
+		assertEquals(500, passed.size());
+		for (int i : passed) {
+			assertEquals(0, i % 2);
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testSingleThreadRunsPipelineWithManyWorkers() {
+
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+
+		AtomicLong sum = new AtomicLong();
+
+		Pipeline<Integer> pipeline = Pipeline.<Integer>builder(pool)
+				.map(i -> i + 1, 4)
+				.map(i -> i - 1, 4)
+				.forEach(sum::addAndGet, 4);
+
+		pipeline.run(range(1_000));
+		pool.shutdown();
+
+		assertEquals(999 * 1_000 / 2, sum.get());
+	}
+
+	private static List<Integer> range(int size) {
+		List<Integer> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+}
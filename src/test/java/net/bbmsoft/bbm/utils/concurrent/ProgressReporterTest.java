@@ -0,0 +1,112 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.bbmsoft.bbm.utils.concurrent.ObservableParallelExecutor.ProgressMonitor;
+import net.bbmsoft.bbm.utils.concurrent.ProgressReporter.Progress;
+
+public class ProgressReporterTest {
+
+	private final List<double[]> updates = Collections.synchronizedList(new ArrayList<>());
+	private final ProgressMonitor monitor = (done, total) -> this.updates.add(new double[] { done, total });
+
+	@Test(timeout = 10_000)
+	public void testUpdatesAreCoalesced() throws InterruptedException {
+
+		ProgressReporter reporter = new ProgressReporter(this.monitor, Duration.ofMillis(200));
+		Progress progress = reporter.start(10_000);
+
+		for (int i = 0; i < 10_000; i++) {
+			progress.completed();
+		}
+
+		Thread.sleep(300);
+
+		// the start is reported right away, all completions in at most two turns
+		assertTrue("updates: " + this.updates.size(), this.updates.size() <= 3);
+		assertLastUpdate(10_000, 10_000);
+	}
+
+	@Test(timeout = 10_000)
+	public void testFinishReportsCompleteProgress() throws InterruptedException {
+
+		ProgressReporter reporter = new ProgressReporter(this.monitor, Duration.ofHours(1));
+		Progress progress = reporter.start(100);
+
+		for (int i = 0; i < 40; i++) {
+			progress.completed();
+		}
+
+		progress.finish();
+
+		awaitLastUpdate(100, 100);
+
+		// tasks completing after the operation has finished are not reported
+		progress.completed();
+		Thread.sleep(100);
+		assertLastUpdate(100, 100);
+	}
+
+	@Test(timeout = 10_000)
+	public void testFinishReportsCompleteProgressOfUnknownTotal() throws InterruptedException {
+
+		ProgressReporter reporter = new ProgressReporter(this.monitor, Duration.ofHours(1));
+		Progress progress = reporter.start(-1);
+
+		for (int i = 0; i < 7; i++) {
+			progress.completed();
+		}
+
+		progress.finish();
+
+		awaitLastUpdate(7, 7);
+	}
+
+	@Test(timeout = 10_000)
+	public void testExecutorReportsCompleteProgress() throws InterruptedException {
+
+		ParallelSynchronousExecutor exec = ParallelSynchronousExecutor.withFixedThreadPool(4, "progress-test", true);
+		exec.setProgressInterval(Duration.ofHours(1));
+		exec.setProgressMonitor(this.monitor);
+
+		try {
+			Runnable task = () -> {
+			};
+			exec.execute(Collections.nCopies(1_000, task));
+		} finally {
+			exec.shutdown();
+		}
+
+		awaitLastUpdate(1_000, 1_000);
+	}
+
+	private void awaitLastUpdate(double done, double total) throws InterruptedException {
+		while (true) {
+			synchronized (this.updates) {
+				if (!this.updates.isEmpty()) {
+					double[] last = this.updates.get(this.updates.size() - 1);
+					if (last[0] == done && last[1] == total) {
+						return;
+					}
+				}
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	private void assertLastUpdate(double done, double total) {
+		synchronized (this.updates) {
+			double[] last = this.updates.get(this.updates.size() - 1);
+			assertEquals(done, last[0], 0);
+			assertEquals(total, last[1], 0);
+		}
+	}
+}
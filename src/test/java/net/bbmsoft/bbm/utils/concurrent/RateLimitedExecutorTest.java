@@ -0,0 +1,117 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimitedExecutorTest {
+
+	// tasks that are due right away are passed on in the calling thread, tasks
+	// that are held back would only be passed on an hour from now
+	private static final double SLOW = 1.0 / TimeUnit.HOURS.toSeconds(1);
+
+	private final List<String> passedOn = Collections.synchronizedList(new ArrayList<>());
+
+	@Test
+	public void testEachKeyHasItsOwnBucket() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, null, SLOW, 2);
+
+		for (int i = 0; i < 5; i++) {
+			exec.execute("a", task("a"));
+			exec.execute("b", task("b"));
+		}
+
+		assertEquals(2, Collections.frequency(this.passedOn, "a"));
+		assertEquals(2, Collections.frequency(this.passedOn, "b"));
+		assertEquals(2, exec.getKeyCount());
+	}
+
+	@Test
+	public void testSharedBucketLimitsAllKeys() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, new TokenBucket(SLOW, 3), 1_000,
+				10);
+
+		for (int i = 0; i < 5; i++) {
+			exec.execute("a", task("a"));
+			exec.execute("b", task("b"));
+		}
+		exec.execute(task("none"));
+
+		assertEquals(3, this.passedOn.size());
+	}
+
+	@Test
+	public void testThrottledKeyDoesNotDelayOtherKeys() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, new TokenBucket(100, 10), SLOW,
+				1);
+
+		for (int i = 0; i < 5; i++) {
+			exec.execute("a", task("a"));
+		}
+		exec.execute("b", task("b"));
+
+		assertEquals(Arrays.asList("a", "b"), this.passedOn);
+	}
+
+	@Test
+	public void testIdleKeysAreDiscarded() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, null, 1_000, 1);
+
+		exec.execute("a", task("a"));
+		assertEquals(1, exec.getKeyCount());
+
+		exec.sweep(System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+		assertEquals(0, exec.getKeyCount());
+
+		exec.execute("a", task("a"));
+		assertEquals(2, this.passedOn.size());
+	}
+
+	@Test
+	public void testBusyKeysAreKept() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, null, SLOW, 1);
+
+		exec.execute("a", task("a"));
+		exec.execute("a", task("a"));
+
+		// the bucket is not full again for an hour, so it must not be replaced
+		exec.sweep(System.nanoTime() + TimeUnit.MINUTES.toNanos(1));
+		assertEquals(1, exec.getKeyCount());
+	}
+
+	@Test
+	public void testBucketRetiredDuringSubmissionIsReplaced() {
+
+		RateLimitedExecutor<String> exec = new RateLimitedExecutor<>(Runnable::run, null, 1_000, 1);
+
+		exec.execute("a", task("a"));
+
+		// a sweep has retired the bucket, but not removed it from the map yet
+		TokenBucket retired = exec.getKeyRateLimit("a");
+		assertTrue(retired.retireIfIdleSince(System.nanoTime() + TimeUnit.MINUTES.toNanos(1)));
+
+		exec.execute("a", task("a"));
+
+		assertEquals(2, this.passedOn.size());
+		assertNotNull(exec.getKeyRateLimit("a"));
+		assertTrue(exec.getKeyRateLimit("a") != retired);
+		assertEquals(1, exec.getKeyCount());
+	}
+
+	private Runnable task(String key) {
+		return () -> this.passedOn.add(key);
+	}
+}
@@ -1,5 +1,11 @@
 package net.bbmsoft.bbm.utils.concurrent;
 
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -36,6 +42,24 @@ public class RepetetiveUpdateExecutorTest {
 		Thread.sleep(8000);
 	}
 
+	@Test
+	public void testDebounceExecutesOnlyLatestUpdate() throws InterruptedException {
+
+		List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+
+		exec.setUpdatePolicy(UpdatePolicy.debounce(Duration.ofMillis(200)));
+
+		for (int i = 0; i < 100; i++) {
+			int count = i;
+			exec.execute(() -> executed.add(count));
+		}
+
+		// wait for the quiet period to pass
+		Thread.sleep(1000);
+
+		assertEquals(Collections.singletonList(99), executed);
+	}
+
 	private void action(int counter) {
 		System.out.printf("Pass %d: Current time: %d\n", Integer.valueOf(counter), Long.valueOf(System.currentTimeMillis()));
 //		try {
@@ -0,0 +1,179 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ShardedExecutorTest {
+
+	@Test(timeout = 10_000)
+	public void testNestedCallsVisitEveryElementOnce() {
+
+		List<Integer> items = new ArrayList<>();
+		for (int i = 0; i < 1_000; i++) {
+			items.add(i);
+		}
+
+		AtomicLong sum = new AtomicLong();
+
+		try (ShardedExecutor exec = new ShardedExecutor(4, 16, new CustomThreadFactory("sharded", true))) {
+			// more chunks than fit into the ring buffers, nested calls run on the workers
+			exec.forEachParallel(items.subList(0, 100), i -> exec.forEachParallel(items, j -> sum.addAndGet(j)));
+		}
+
+		assertEquals(100 * 999 * 1_000 / 2, sum.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testTasksWithSameKeyRunInOrderWithoutStealing() throws InterruptedException {
+
+		int keys = 10;
+		int tasksPerKey = 1_000;
+
+		List<List<Integer>> results = new ArrayList<>();
+		for (int k = 0; k < keys; k++) {
+			results.add(new ArrayList<>());
+		}
+
+		CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+
+		try (ShardedExecutor exec = new ShardedExecutor(4)) {
+
+			exec.setStealing(false);
+
+			for (int i = 0; i < tasksPerKey; i++) {
+				for (int k = 0; k < keys; k++) {
+					List<Integer> result = results.get(k);
+					int value = i;
+					exec.submit(k, () -> {
+						result.add(value);
+						done.countDown();
+					});
+				}
+			}
+
+			done.await();
+		}
+
+		for (List<Integer> result : results) {
+			assertEquals(tasksPerKey, result.size());
+			for (int i = 0; i < tasksPerKey; i++) {
+				assertEquals(i, result.get(i).intValue());
+			}
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testNestedCallDoesNotStartNextTaskWithSameKey() throws InterruptedException {
+
+		AtomicBoolean firstRunning = new AtomicBoolean();
+		AtomicBoolean overlapped = new AtomicBoolean();
+		CountDownLatch secondSubmitted = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+
+		try (ShardedExecutor exec = new ShardedExecutor(2)) {
+
+			exec.setStealing(false);
+
+			exec.submit("key", () -> {
+				firstRunning.set(true);
+				try {
+					secondSubmitted.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				// the next task with the same key is now queued on this shard
+				exec.forEachParallel(Collections.nCopies(100, 1), i -> {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+				firstRunning.set(false);
+			});
+
+			exec.submit("key", () -> {
+				overlapped.set(firstRunning.get());
+				done.countDown();
+			});
+
+			secondSubmitted.countDown();
+			done.await();
+		}
+
+		assertFalse(overlapped.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testConsumerExceptionsAreRethrown() {
+
+		AtomicInteger visited = new AtomicInteger();
+
+		try (ShardedExecutor exec = new ShardedExecutor(4)) {
+			exec.forEachParallel(range(1_000), i -> {
+				visited.incrementAndGet();
+				if (i % 100 == 0) {
+					throw new IllegalStateException("failure " + i);
+				}
+			});
+			fail("ParallelExecutionException expected");
+		} catch (ParallelExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+			assertEquals(9, e.getSuppressed().length);
+		}
+
+		assertEquals(1_000, visited.get());
+	}
+
+	@Test(timeout = 10_000)
+	public void testNestedConsumerExceptionsAreRethrownByWorkers() {
+
+		try (ShardedExecutor exec = new ShardedExecutor(2)) {
+			exec.forEachParallel(range(10), i -> exec.forEachParallel(range(100), j -> {
+				if (i == 5 && j == 50) {
+					throw new IllegalStateException("nested failure");
+				}
+			}));
+			fail("ParallelExecutionException expected");
+		} catch (ParallelExecutionException e) {
+			assertTrue(e.getCause() instanceof ParallelExecutionException);
+			assertEquals("nested failure", e.getCause().getCause().getMessage());
+		}
+	}
+
+	@Test(timeout = 10_000)
+	public void testAsyncCallCompletesExceptionally() throws InterruptedException {
+
+		try (ShardedExecutor exec = new ShardedExecutor(4)) {
+			exec.forEachParallelAsync(range(1_000), i -> {
+				if (i == 500) {
+					throw new IllegalStateException("failure");
+				}
+			}).get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ParallelExecutionException);
+		}
+	}
+
+	private static List<Integer> range(int size) {
+		List<Integer> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(i);
+		}
+		return list;
+	}
+}
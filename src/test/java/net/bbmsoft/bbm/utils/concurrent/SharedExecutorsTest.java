@@ -0,0 +1,46 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SharedExecutorsTest {
+
+	@Test
+	public void testExecutorsAreSharedByNameUntilShutDown() {
+
+		ParallelSynchronousExecutor exec = SharedExecutors.get("shared-test");
+
+		assertSame(exec, SharedExecutors.get("shared-test"));
+		assertSame(exec, SharedExecutors.find("shared-test"));
+		assertTrue(SharedExecutors.getNames().contains("shared-test"));
+
+		SharedExecutors.shutdown("shared-test");
+
+		assertTrue(exec.isShutdown());
+		assertNull(SharedExecutors.find("shared-test"));
+		assertFalse(SharedExecutors.getNames().contains("shared-test"));
+
+		ParallelSynchronousExecutor replacement = SharedExecutors.get("shared-test");
+
+		assertNotSame(exec, replacement);
+		replacement.close();
+		assertNull(SharedExecutors.find("shared-test"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExecutorCannotBeSharedUnderTwoNames() {
+
+		ParallelSynchronousExecutor exec = SharedExecutors.get("shared-once");
+
+		try {
+			SharedExecutors.get("shared-twice", () -> exec);
+		} finally {
+			exec.close();
+		}
+	}
+}
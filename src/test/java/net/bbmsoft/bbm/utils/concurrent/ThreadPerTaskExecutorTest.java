@@ -0,0 +1,43 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ThreadPerTaskExecutorTest {
+
+	@Test(timeout = 10_000)
+	public void testConcurrencyLimitIsNotExceeded() throws InterruptedException {
+
+		ThreadPerTaskExecutor exec = new ThreadPerTaskExecutor(new CustomThreadFactory("per-task", true), 3);
+
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(50);
+
+		for (int i = 0; i < 50; i++) {
+			exec.execute(() -> {
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(2);
+				} catch (InterruptedException e) {
+					// not interrupted
+				}
+				inFlight.decrementAndGet();
+				done.countDown();
+			});
+		}
+
+		done.await();
+		exec.shutdown();
+
+		assertTrue(exec.awaitTermination(1, TimeUnit.SECONDS));
+		assertTrue(maxInFlight.get() <= 3);
+		assertEquals(0, inFlight.get());
+	}
+}
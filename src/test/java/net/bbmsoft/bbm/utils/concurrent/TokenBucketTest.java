@@ -0,0 +1,136 @@
+package net.bbmsoft.bbm.utils.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	private static final long START = 1_000_000_000L;
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void testFullBucketGrantsBurstRightAway() {
+
+		TokenBucket bucket = new TokenBucket(10, 3, START);
+
+		assertTrue(bucket.tryAcquire(START));
+		assertTrue(bucket.tryAcquire(START));
+		assertTrue(bucket.tryAcquire(START));
+		assertFalse(bucket.tryAcquire(START));
+		assertFalse(bucket.tryAcquire(START + INTERVAL - 1));
+		assertTrue(bucket.tryAcquire(START + INTERVAL));
+		assertFalse(bucket.tryAcquire(START + INTERVAL));
+	}
+
+	@Test
+	public void testReservationsAreSpacedByInterval() {
+
+		TokenBucket bucket = new TokenBucket(10, 3, START);
+
+		assertEquals(START, bucket.reserve(START));
+		assertEquals(START, bucket.reserve(START));
+		assertEquals(START, bucket.reserve(START));
+		assertEquals(START + INTERVAL, bucket.reserve(START));
+		assertEquals(START + 2 * INTERVAL, bucket.reserve(START));
+
+		// reservations count against tryAcquire as well
+		assertFalse(bucket.tryAcquire(START + 2 * INTERVAL));
+		assertTrue(bucket.tryAcquire(START + 3 * INTERVAL));
+	}
+
+	@Test
+	public void testReservationIsNotEarlierThanRequested() {
+
+		TokenBucket bucket = new TokenBucket(10, 1, START);
+
+		assertEquals(START + 5 * INTERVAL, bucket.reserve(START + 5 * INTERVAL));
+		assertEquals(START + 6 * INTERVAL, bucket.reserve(START));
+	}
+
+	@Test
+	public void testBucketRefillsUpToBurstOnly() {
+
+		TokenBucket bucket = new TokenBucket(10, 3, START);
+
+		for (int i = 0; i < 10; i++) {
+			bucket.reserve(START);
+		}
+
+		// long after the last reservation, the bucket is full again, but no fuller
+		long later = START + TimeUnit.HOURS.toNanos(1);
+		assertEquals(later, bucket.reserve(later));
+		assertEquals(later, bucket.reserve(later));
+		assertEquals(later, bucket.reserve(later));
+		assertEquals(later + INTERVAL, bucket.reserve(later));
+	}
+
+	@Test
+	public void testRateIsNeverExceeded() {
+
+		int burst = 5;
+		TokenBucket bucket = new TokenBucket(3, burst, START);
+		long interval = (long) Math.ceil(TimeUnit.SECONDS.toNanos(1) / 3.0);
+
+		long[] times = new long[1_000];
+		long now = START;
+
+		for (int i = 0; i < times.length; i++) {
+			// requests arrive faster than the rate, with occasional pauses
+			now += i % 100 == 0 ? TimeUnit.SECONDS.toNanos(1) : interval / 7;
+			times[i] = bucket.reserve(now);
+			assertTrue(times[i] - now >= 0);
+		}
+
+		// a window holds at most the burst plus one permit per interval, i.e. any
+		// k + 1 consecutive permits span at least k - burst + 1 intervals
+		for (int i = 0; i < times.length; i++) {
+			for (int k = burst; k < 50 && i + k < times.length; k++) {
+				assertTrue("permits " + i + " to " + (i + k), times[i + k] - times[i] >= (k - burst + 1) * interval);
+			}
+		}
+	}
+
+	@Test
+	public void testTimesMayOverflow() {
+
+		long start = Long.MAX_VALUE - INTERVAL / 2;
+		TokenBucket bucket = new TokenBucket(10, 1, start);
+
+		assertEquals(start, bucket.reserve(start));
+		assertEquals(start + INTERVAL, bucket.reserve(start));
+		assertFalse(bucket.tryAcquire(start + INTERVAL));
+		assertTrue(bucket.tryAcquire(start + 2 * INTERVAL));
+	}
+
+	@Test
+	public void testOnlyIdleBucketIsRetired() {
+
+		TokenBucket bucket = new TokenBucket(10, 2, START);
+
+		bucket.reserve(START);
+		bucket.reserve(START);
+
+		// the bucket is full again one interval after the first permit is used up
+		assertFalse(bucket.retireIfIdleSince(START + INTERVAL));
+		assertTrue(bucket.retireIfIdleSince(START + 2 * INTERVAL));
+		assertFalse(bucket.retireIfIdleSince(START + 2 * INTERVAL));
+
+		assertEquals(TokenBucket.RETIRED, bucket.reserve(START + 3 * INTERVAL));
+		assertFalse(bucket.tryAcquire(START + 3 * INTERVAL));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRateMustBePositive() {
+		new TokenBucket(0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBurstMustBePositive() {
+		new TokenBucket(1, 0);
+	}
+}